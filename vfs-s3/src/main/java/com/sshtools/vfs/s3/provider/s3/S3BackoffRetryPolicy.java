@@ -0,0 +1,82 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * The default {@link S3RetryPolicy}. Throttling and server side (5xx) errors
+ * are retried a limited number of times using exponential backoff with full
+ * jitter, i.e. a random delay between zero and a cap that doubles with each
+ * attempt. Anything else is not retried.
+ */
+public class S3BackoffRetryPolicy implements S3RetryPolicy {
+
+	public static final int DEFAULT_MAX_RETRIES = 4;
+	public static final long DEFAULT_BASE_DELAY = 200;
+	public static final long DEFAULT_MAX_DELAY = 20000;
+
+	private final int maxRetries;
+	private final long baseDelay;
+	private final long maxDelay;
+
+	public S3BackoffRetryPolicy() {
+		this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxRetries maximum number of retries of a single operation
+	 * @param baseDelay cap of the delay before the first retry in milliseconds
+	 * @param maxDelay cap of the delay before any retry in milliseconds
+	 */
+	public S3BackoffRetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+		this.maxRetries = maxRetries;
+		this.baseDelay = Math.max(1, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+	}
+
+	@Override
+	public long getRetryDelay(AmazonClientException exception, int attempt) {
+		if (attempt >= maxRetries || !isRetryable(exception)) {
+			return -1;
+		}
+		long cap = Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+		return ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+
+	/**
+	 * Get whether a failure is one that may succeed if tried again later.
+	 *
+	 * @param exception failure
+	 * @return retryable
+	 */
+	protected boolean isRetryable(AmazonClientException exception) {
+		if (isThrottle(exception)) {
+			return true;
+		}
+		if (exception instanceof AmazonServiceException) {
+			int status = ((AmazonServiceException) exception).getStatusCode();
+			return status >= 500 && status != 501;
+		}
+		return false;
+	}
+
+	/**
+	 * Get whether a failure is S3 asking for requests to be slowed down.
+	 *
+	 * @param exception failure
+	 * @return throttled
+	 */
+	public static boolean isThrottle(AmazonClientException exception) {
+		if (exception instanceof AmazonServiceException) {
+			AmazonServiceException ase = (AmazonServiceException) exception;
+			String code = ase.getErrorCode();
+			return ase.getStatusCode() == 503 || ase.getStatusCode() == 429 || "SlowDown".equals(code)
+					|| (code != null && code.startsWith("Throttl"));
+		}
+		return false;
+	}
+}
@@ -0,0 +1,123 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+
+/**
+ * Deletes keys from a bucket using multi-object delete requests of up to
+ * {@link #MAX_BATCH_SIZE} keys each. Keys are added as they are discovered,
+ * and full batches are sent either on the calling thread or, when a
+ * concurrency greater than 1 is used, several at a time on an executor.
+ */
+class S3BulkDelete {
+	static Log log = LogFactory.getLog(S3BulkDelete.class);
+
+	/** The maximum number of keys S3 accepts in a single delete request */
+	static final int MAX_BATCH_SIZE = 1000;
+
+	private final S3FileObject file;
+	private final String bucketName;
+	private final int concurrency;
+	private final ExecutorService executor;
+	private final S3DeleteResult result = new S3DeleteResult();
+	private final Deque<Future<?>> pending = new ArrayDeque<>();
+	private List<KeyVersion> batch = new ArrayList<>();
+
+	S3BulkDelete(S3FileObject file, String bucketName, int concurrency, ExecutorService executor) {
+		this.file = file;
+		this.bucketName = bucketName;
+		this.concurrency = Math.max(1, concurrency);
+		this.executor = executor;
+	}
+
+	void add(String key) throws InterruptedIOException {
+		batch.add(new KeyVersion(key));
+		if (batch.size() == MAX_BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	S3DeleteResult finish() throws InterruptedIOException {
+		if (!batch.isEmpty()) {
+			flush();
+		}
+		while (!pending.isEmpty()) {
+			await(pending.poll());
+		}
+		return result;
+	}
+
+	private void flush() throws InterruptedIOException {
+		final List<KeyVersion> keys = batch;
+		batch = new ArrayList<>();
+		if (concurrency == 1) {
+			delete(keys);
+		} else {
+			while (pending.size() >= concurrency) {
+				await(pending.poll());
+			}
+			pending.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					delete(keys);
+				}
+			}));
+		}
+	}
+
+	private void await(Future<?> future) throws InterruptedIOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (Future<?> f : pending) {
+				f.cancel(true);
+			}
+			throw new InterruptedIOException("Interrupted waiting for batch delete.");
+		} catch (ExecutionException e) {
+			/* delete() records its own failures */
+			log.error("Unexpected failure in batch delete.", e.getCause());
+		}
+	}
+
+	private void delete(final List<KeyVersion> keys) {
+		try {
+			file.exec(new S3Op<Void>() {
+				@Override
+				public Void exec(AmazonS3 service) {
+					service.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(keys).withQuiet(true));
+					return null;
+				}
+			});
+			result.addDeleted(keys.size());
+		} catch (MultiObjectDeleteException mode) {
+			List<DeleteError> errors = mode.getErrors();
+			for (DeleteError err : errors) {
+				log.warn(String.format("Failed to delete %s from %s. %s: %s", err.getKey(), bucketName, err.getCode(),
+						err.getMessage()));
+				result.addFailure(err.getKey(), err.getCode() + ": " + err.getMessage());
+			}
+			result.addDeleted(keys.size() - errors.size());
+		} catch (RuntimeException re) {
+			log.warn(String.format("Failed to delete batch of %d keys from %s.", keys.size(), bucketName), re);
+			for (KeyVersion k : keys) {
+				result.addFailure(k.getKey(), re.getMessage());
+			}
+		}
+	}
+}
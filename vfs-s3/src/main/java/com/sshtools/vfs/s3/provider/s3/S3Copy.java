@@ -0,0 +1,318 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
+import com.amazonaws.services.s3.model.StorageClass;
+
+/**
+ * Server side copy of objects, without any content passing through this JVM.
+ * Copies are fanned out over an executor with a bounded number in progress at
+ * once. Objects at or above the multipart threshold (and always those over
+ * the 5 GB single request limit) are copied as a multipart upload using
+ * <code>UploadPartCopy</code>, with each part a separate task. The upload is
+ * given the source's metadata, storage class and encryption, as a single copy
+ * would have.
+ * <p>
+ * Tasks never wait on other tasks; multipart uploads are initiated and
+ * completed on the calling thread.
+ */
+class S3Copy {
+	static Log log = LogFactory.getLog(S3Copy.class);
+
+	/** The largest object that may be copied with a single request */
+	static final long MAX_SINGLE_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+	/** The maximum number of parts in a multipart upload */
+	static final int MAX_PARTS = 10000;
+
+	private final int concurrency;
+	private final long multipartThreshold;
+	private final long partSize;
+	private final ExecutorService executor;
+	private final boolean serverSideEncryption;
+	private final Deque<Future<?>> pending = new ArrayDeque<>();
+	private final List<MultipartCopy> multiparts = new ArrayList<>();
+	private IOException error;
+	private int copied;
+
+	S3Copy(int concurrency, long multipartThreshold, long partSize, ExecutorService executor,
+			boolean serverSideEncryption) {
+		this.concurrency = Math.max(1, concurrency);
+		this.multipartThreshold = Math.min(multipartThreshold, MAX_SINGLE_COPY_SIZE);
+		this.partSize = partSize;
+		this.executor = executor;
+		this.serverSideEncryption = serverSideEncryption;
+	}
+
+	/**
+	 * Schedule the copy of a single object.
+	 *
+	 * @param target object whose client (and so region) should perform the
+	 *            copy, usually the destination
+	 * @param sourceBucket source bucket
+	 * @param sourceKey source key
+	 * @param size size of source object
+	 * @param destinationBucket destination bucket
+	 * @param destinationKey destination key
+	 * @throws IOException if interrupted, or an earlier copy has failed
+	 */
+	void copy(final S3FileObject target, final String sourceBucket, final String sourceKey, long size,
+			final String destinationBucket, final String destinationKey) throws IOException {
+		checkError();
+		if (size >= multipartThreshold) {
+			MultipartCopy mp = new MultipartCopy(target, sourceBucket, sourceKey, size, destinationBucket, destinationKey);
+			multiparts.add(mp);
+			mp.start();
+		} else {
+			submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					if (log.isDebugEnabled()) {
+						log.debug(String.format("Copying %s/%s to %s/%s", sourceBucket, sourceKey, destinationBucket,
+								destinationKey));
+					}
+					return target.exec(new S3Op<Object>() {
+						@Override
+						public Object exec(AmazonS3 service) {
+							return service.copyObject(sourceBucket, sourceKey, destinationBucket, destinationKey);
+						}
+					});
+				}
+			});
+		}
+		copied++;
+	}
+
+	/**
+	 * Wait for all scheduled copies to finish and complete any multipart
+	 * copies.
+	 *
+	 * @return number of objects copied
+	 * @throws IOException if any copy failed
+	 */
+	int finish() throws IOException {
+		try {
+			while (!pending.isEmpty()) {
+				await(pending.poll());
+			}
+			for (MultipartCopy mp : multiparts) {
+				if (error == null) {
+					mp.complete();
+				} else {
+					mp.abort();
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			for (MultipartCopy mp : multiparts) {
+				mp.abort();
+			}
+			throw e;
+		}
+		checkError();
+		return copied;
+	}
+
+	/**
+	 * Cancel any copies still in progress and abort multipart copies. Used
+	 * when the caller gives up part way through scheduling.
+	 */
+	void cancel() {
+		for (Future<?> f : pending) {
+			f.cancel(true);
+		}
+		pending.clear();
+		for (MultipartCopy mp : multiparts) {
+			mp.abort();
+		}
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private <T> Future<T> submit(Callable<T> task) throws IOException {
+		while (pending.size() >= concurrency) {
+			await(pending.poll());
+		}
+		Future<T> f = executor.submit(task);
+		pending.add(f);
+		return f;
+	}
+
+	private void await(Future<?> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (Future<?> f : pending) {
+				f.cancel(true);
+			}
+			pending.clear();
+			throw new InterruptedIOException("Interrupted waiting for copy.");
+		} catch (ExecutionException e) {
+			if (error == null) {
+				Throwable cause = e.getCause();
+				error = cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+			}
+		}
+	}
+
+	private class MultipartCopy {
+		private final S3FileObject target;
+		private final String sourceBucket;
+		private final String sourceKey;
+		private final long size;
+		private final String destinationBucket;
+		private final String destinationKey;
+		private final List<Future<PartETag>> parts = new ArrayList<>();
+		private String uploadId;
+
+		MultipartCopy(S3FileObject target, String sourceBucket, String sourceKey, long size, String destinationBucket,
+				String destinationKey) {
+			this.target = target;
+			this.sourceBucket = sourceBucket;
+			this.sourceKey = sourceKey;
+			this.size = size;
+			this.destinationBucket = destinationBucket;
+			this.destinationKey = destinationKey;
+		}
+
+		void start() throws IOException {
+			uploadId = target.exec(new S3Op<String>() {
+				@Override
+				public String exec(AmazonS3 service) {
+					return service.initiateMultipartUpload(createInitiateRequest(
+							service.getObjectMetadata(sourceBucket, sourceKey))).getUploadId();
+				}
+			});
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Copying %s/%s to %s/%s as multipart upload %s", sourceBucket, sourceKey,
+						destinationBucket, destinationKey, uploadId));
+			}
+			long thisPartSize = Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+			int partNumber = 1;
+			for (long offset = 0; offset < size; offset += thisPartSize) {
+				final CopyPartRequest req = new CopyPartRequest().withSourceBucketName(sourceBucket)
+						.withSourceKey(sourceKey).withDestinationBucketName(destinationBucket)
+						.withDestinationKey(destinationKey).withUploadId(uploadId).withPartNumber(partNumber++)
+						.withFirstByte(offset).withLastByte(Math.min(size, offset + thisPartSize) - 1);
+				parts.add(submit(new Callable<PartETag>() {
+					@Override
+					public PartETag call() throws Exception {
+						return target.exec(new S3Op<PartETag>() {
+							@Override
+							public PartETag exec(AmazonS3 service) {
+								return service.copyPart(req).getPartETag();
+							}
+						});
+					}
+				}));
+			}
+		}
+
+		/**
+		 * Carry over what <code>CopyObject</code> would have from the source,
+		 * as a multipart upload starts with none of it.
+		 */
+		private InitiateMultipartUploadRequest createInitiateRequest(ObjectMetadata source) {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setUserMetadata(source.getUserMetadata());
+			if (source.getContentType() != null) {
+				metadata.setContentType(source.getContentType());
+			}
+			if (source.getContentEncoding() != null) {
+				metadata.setContentEncoding(source.getContentEncoding());
+			}
+			if (source.getContentDisposition() != null) {
+				metadata.setContentDisposition(source.getContentDisposition());
+			}
+			if (source.getContentLanguage() != null) {
+				metadata.setContentLanguage(source.getContentLanguage());
+			}
+			if (source.getCacheControl() != null) {
+				metadata.setCacheControl(source.getCacheControl());
+			}
+			if (source.getHttpExpiresDate() != null) {
+				metadata.setHttpExpiresDate(source.getHttpExpiresDate());
+			}
+			InitiateMultipartUploadRequest req = new InitiateMultipartUploadRequest(destinationBucket, destinationKey,
+					metadata);
+			if (source.getStorageClass() != null) {
+				try {
+					req.setStorageClass(StorageClass.fromValue(source.getStorageClass()));
+				} catch (IllegalArgumentException e) {
+					log.warn(String.format("Unknown storage class %s of %s/%s, copy will use the default.",
+							source.getStorageClass(), sourceBucket, sourceKey));
+				}
+			}
+			if (source.getSSEAwsKmsKeyId() != null) {
+				req.setSSEAwsKeyManagementParams(new SSEAwsKeyManagementParams(source.getSSEAwsKmsKeyId()));
+			} else if (serverSideEncryption || source.getSSEAlgorithm() != null) {
+				metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+			}
+			return req;
+		}
+
+		void complete() throws IOException {
+			final List<PartETag> etags = new ArrayList<>(parts.size());
+			for (Future<PartETag> f : parts) {
+				try {
+					etags.add(f.get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for copy.");
+				} catch (ExecutionException e) {
+					throw new IOException(String.format("Failed to copy %s/%s.", sourceBucket, sourceKey), e.getCause());
+				}
+			}
+			target.exec(new S3Op<Void>() {
+				@Override
+				public Void exec(AmazonS3 service) {
+					service.completeMultipartUpload(
+							new CompleteMultipartUploadRequest(destinationBucket, destinationKey, uploadId, etags));
+					return null;
+				}
+			});
+			uploadId = null;
+		}
+
+		void abort() {
+			if (uploadId != null) {
+				final String id = uploadId;
+				uploadId = null;
+				try {
+					target.exec(new S3Op<Void>() {
+						@Override
+						public Void exec(AmazonS3 service) {
+							service.abortMultipartUpload(new AbortMultipartUploadRequest(destinationBucket, destinationKey, id));
+							return null;
+						}
+					});
+				} catch (RuntimeException e) {
+					log.warn(String.format("Failed to abort multipart copy %s", id), e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The outcome of a batched delete of many keys. Keys that could not be deleted
+ * are reported individually along with the reason given by S3.
+ */
+public class S3DeleteResult {
+	private int deleted;
+	private final Map<String, String> failures = new LinkedHashMap<>();
+
+	/**
+	 * Get the number of keys that were deleted.
+	 * 
+	 * @return deleted count
+	 */
+	public synchronized int getDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * Get the keys that could not be deleted, mapped to the error that
+	 * prevented each from being deleted.
+	 * 
+	 * @return failed keys and their errors
+	 */
+	public synchronized Map<String, String> getFailures() {
+		return Collections.unmodifiableMap(new LinkedHashMap<>(failures));
+	}
+
+	/**
+	 * Get whether every key was deleted.
+	 * 
+	 * @return successful
+	 */
+	public synchronized boolean isSuccessful() {
+		return failures.isEmpty();
+	}
+
+	synchronized void addDeleted(int count) {
+		deleted += count;
+	}
+
+	synchronized void addFailure(String key, String error) {
+		failures.put(key, error);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "S3DeleteResult [deleted=" + deleted + ", failures=" + failures.size() + "]";
+	}
+}
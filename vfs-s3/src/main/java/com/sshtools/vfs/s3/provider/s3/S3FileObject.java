@@ -12,6 +12,7 @@ import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -28,10 +29,16 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.commons.vfs2.AllFileSelector;
 import org.apache.commons.vfs2.FileName;
 import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSelector;
 import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileSystemOptions;
 import org.apache.commons.vfs2.FileType;
+import org.apache.commons.vfs2.NameScope;
+import org.apache.commons.vfs2.RandomAccessContent;
 import org.apache.commons.vfs2.provider.AbstractFileName;
 import org.apache.commons.vfs2.provider.AbstractFileObject;
+import org.apache.commons.vfs2.util.FileObjectUtils;
+import org.apache.commons.vfs2.util.RandomAccessMode;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
@@ -44,17 +51,20 @@ import com.amazonaws.services.s3.model.AccessControlList;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.Bucket;
 import com.amazonaws.services.s3.model.CanonicalGrantee;
-import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.Grant;
 import com.amazonaws.services.s3.model.Grantee;
 import com.amazonaws.services.s3.model.GroupGrantee;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.Owner;
 import com.amazonaws.services.s3.model.Permission;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.util.StringUtils;
 import com.sshtools.vfs.s3.operations.Acl;
@@ -365,12 +375,7 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 			if (StringUtils.isNullOrEmpty(bucketId)) {
 				objectType = ObjectType.ROOT;
 			} else {
-				if (exec(new S3Op<Boolean>() {
-					@Override
-					public Boolean exec(AmazonS3 service) {
-						return service.doesBucketExistV2(bucketId);
-					}
-				})) {
+				if (bucketExists(bucketId)) {
 					bucket = new Bucket(bucketId);
 				}
 				if (StringUtils.isNullOrEmpty(candidateKey)) {
@@ -381,6 +386,17 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 					 * exists
 					 */
 					if (bucket != null) {
+						if (attachFromSnapshot(bucketId, candidateKey)) {
+							return;
+						}
+						S3MetadataCache cache = getMetadataCache();
+						S3MetadataCache.Entry cached = cache.get(bucketId, candidateKey);
+						if (cached != null) {
+							objectMetadata = cached.getMetadata();
+							objectType = cached.getKind() == S3MetadataCache.Kind.FOLDER ? ObjectType.FOLDER
+									: ObjectType.OBJECT;
+							return;
+						}
 						try {
 							// Do we have file with name?
 							objectMetadata = exec(new S3Op<ObjectMetadata>() {
@@ -390,6 +406,7 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 								}
 							});
 							objectType = ObjectType.OBJECT;
+							cache.putObject(bucketId, candidateKey, objectMetadata);
 							return;
 						} catch (AmazonS3Exception ase3) {
 							String errorCode = ase3.getErrorCode();
@@ -440,8 +457,10 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 						if (!listing.getCommonPrefixes().isEmpty()
 								&& listing.getCommonPrefixes().get(0).equals(startWithNoSlash(endsWithSlash(candidateKey)))) {
 							objectType = ObjectType.FOLDER;
+							cache.putFolder(bucketId, candidateKey);
 						} else {
 							objectType = ObjectType.OBJECT;
+							cache.putMissing(bucketId, candidateKey);
 						}
 					} else
 						objectType = ObjectType.OBJECT;
@@ -451,6 +470,139 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 		}
 	}
 
+	/**
+	 * Lazily iterate over the objects under this folder or bucket, one listing
+	 * page at a time, so memory use is constant no matter how many keys there
+	 * are. Unlike {@link #getChildren()} the result is never truncated. Each
+	 * returned file object is already populated with the size, last modified
+	 * time and ETag from the listing, so querying them costs no further
+	 * requests.
+	 * <p>
+	 * When not recursive, the immediate children are returned, with folders
+	 * (common prefixes) included. When recursive, every object under the
+	 * prefix is returned, and folders are only returned if they have a
+	 * placeholder object. Errors while iterating are thrown as
+	 * {@link java.io.UncheckedIOException} or {@link AmazonClientException}.
+	 * 
+	 * @param prefix prefix relative to this folder, or <code>null</code> for
+	 *            all of its contents
+	 * @param recursive list all descendants instead of just the immediate
+	 *            children
+	 * @return iterator of file objects
+	 * @throws FileSystemException if this is not a bucket or folder
+	 */
+	public Iterator<FileObject> walk(String prefix, boolean recursive) throws FileSystemException {
+		if (getType() != FileType.FOLDER || objectType == ObjectType.ROOT) {
+			throw new FileSystemException(String.format("%s is not a bucket or folder.", getName().getPath()));
+		}
+		String key = getS3Key();
+		String base = StringUtils.isNullOrEmpty(key) ? "" : endsWithSlash(key);
+		return new S3ListingIterator(this, getBucketId(), base, prefix == null ? "" : startWithNoSlash(prefix), recursive);
+	}
+
+	/**
+	 * Attach from a snapshot covering the key, returning <code>false</code>
+	 * if there is none and S3 must be asked instead.
+	 */
+	private boolean attachFromSnapshot(String bucketId, String key) {
+		S3Snapshot snapshot = ((S3FileSystem) getFileSystem()).getSnapshot(bucketId, key);
+		if (snapshot == null) {
+			return false;
+		}
+		int idx = snapshot.indexOf(key);
+		if (idx >= 0) {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(snapshot.getSize(idx));
+			metadata.setContentType(Mimetypes.getInstance().getMimetype(getName().getBaseName()));
+			metadata.setLastModified(new Date(snapshot.getLastModified(idx)));
+			String etag = snapshot.getETag(idx);
+			if (etag != null) {
+				metadata.setHeader(Headers.ETAG, etag);
+			}
+			objectMetadata = metadata;
+			objectType = ObjectType.OBJECT;
+		} else {
+			objectMetadata = new ObjectMetadata();
+			objectType = snapshot.lookup(key) == S3Snapshot.Kind.FOLDER ? ObjectType.FOLDER : ObjectType.OBJECT;
+		}
+		return true;
+	}
+
+	/**
+	 * Take a snapshot of every key under this folder or bucket with a single
+	 * flat listing, and answer existence, type, size, modification time and
+	 * ETag for any of them from it instead of asking S3 each time. This suits
+	 * jobs that visit most objects under a large prefix.
+	 * <p>
+	 * The snapshot is kept compactly, at a few tens of bytes per key plus the
+	 * key itself. Changes made through this file system are seen (the affected
+	 * keys are looked up as normal), but changes made elsewhere are not until
+	 * the snapshot is discarded with {@link S3FileSystem#clearSnapshots()} or
+	 * replaced by taking another.
+	 * 
+	 * @return number of keys in the snapshot
+	 * @throws FileSystemException on error
+	 */
+	public int snapshot() throws FileSystemException {
+		final String bucketId = getBucketId();
+		if (StringUtils.isNullOrEmpty(bucketId)) {
+			throw new FileSystemException("Cannot snapshot the root of S3.");
+		}
+		String key = getS3Key();
+		String prefix = StringUtils.isNullOrEmpty(key) ? "" : endsWithSlash(key);
+		S3Snapshot snapshot = new S3Snapshot(bucketId, prefix);
+		final ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucketId).withPrefix(prefix);
+		try {
+			ListObjectsV2Result listing;
+			do {
+				listing = exec(new S3Op<ListObjectsV2Result>() {
+					@Override
+					public ListObjectsV2Result exec(AmazonS3 service) {
+						return service.listObjectsV2(req);
+					}
+				});
+				for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+					snapshot.add(summary);
+				}
+				req.setContinuationToken(listing.getNextContinuationToken());
+			} while (listing.isTruncated());
+		} catch (AmazonClientException e) {
+			throw new FileSystemException(e);
+		}
+		snapshot.trim();
+		((S3FileSystem) getFileSystem()).addSnapshot(snapshot);
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("Snapshot of %s/%s has %d keys", bucketId, prefix, snapshot.size()));
+		}
+		return snapshot.size();
+	}
+
+	/**
+	 * Populate this object from a listing summary, so it does not need to be
+	 * attached separately.
+	 * 
+	 * @param summary summary
+	 */
+	void setSummary(S3ObjectSummary summary) {
+		ObjectMetadata childMetadata = new ObjectMetadata();
+		childMetadata.setContentLength(summary.getSize());
+		childMetadata.setContentType(Mimetypes.getInstance().getMimetype(getName().getBaseName()));
+		childMetadata.setLastModified(summary.getLastModified());
+		childMetadata.setHeader(Headers.ETAG, summary.getETag());
+		objectMetadata = childMetadata;
+		objectType = ObjectType.OBJECT;
+		getMetadataCache().putObject(getBucketId(), getS3Key(), childMetadata);
+	}
+
+	/**
+	 * Mark this object as a folder, as discovered from a common prefix in a
+	 * listing.
+	 */
+	void setFolder() {
+		objectType = ObjectType.FOLDER;
+		getMetadataCache().putFolder(getBucketId(), getS3Key());
+	}
+
 	private String startWithNoSlash(String str) {
 		if(str.startsWith("/")) {
 			return str.substring(1);
@@ -513,11 +665,13 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 			objectMetadata = metadata;
 			break;
 		}
+		invalidateCached(false);
 		objectType = ObjectType.FOLDER;
 	}
 
 	@Override
 	protected void doDelete() throws Exception {
+		invalidateCached(objectType != ObjectType.OBJECT);
 		switch (objectType) {
 		case ROOT:
 			throw new IOException("Cannot delete all of S3!");
@@ -549,6 +703,87 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 		}
 	}
 
+	/**
+	 * Delete this folder or bucket and everything under it. When this is a
+	 * folder or bucket the keys below it are listed without a delimiter and
+	 * removed using batched multi-object deletes, rather than visiting each
+	 * file individually.
+	 * 
+	 * @return number of objects deleted
+	 * @throws FileSystemException on error, including if any key could not be
+	 *             deleted
+	 * @see #deleteAllBatched()
+	 */
+	@Override
+	public int deleteAll() throws FileSystemException {
+		if (getType() != FileType.FOLDER || objectType == ObjectType.ROOT) {
+			return super.deleteAll();
+		}
+		S3DeleteResult result = deleteAllBatched();
+		if (!result.isSuccessful()) {
+			Map.Entry<String, String> first = result.getFailures().entrySet().iterator().next();
+			throw new FileSystemException(String.format("Failed to delete %d object(s) under %s. %s: %s",
+					result.getFailures().size(), getName().getPath(), first.getKey(), first.getValue()));
+		}
+		int count = result.getDeleted();
+		if (objectType == ObjectType.BUCKET) {
+			refresh();
+			if (delete()) {
+				count++;
+			}
+		} else {
+			try {
+				handleDelete();
+			} catch (Exception e) {
+				throw new FileSystemException(e);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Delete every object with a key under this folder or bucket, including any
+	 * folder placeholder, using multi-object delete requests of up to 1000 keys
+	 * each. Up to
+	 * {@link S3FileSystemConfigBuilder#getDeleteConcurrency(org.apache.commons.vfs2.FileSystemOptions)}
+	 * requests are in progress at once. The bucket itself is not deleted.
+	 * <p>
+	 * Keys that fail to delete do not stop the operation, and are reported in
+	 * the returned result.
+	 * 
+	 * @return result
+	 * @throws FileSystemException if the keys could not be listed
+	 */
+	public S3DeleteResult deleteAllBatched() throws FileSystemException {
+		final String bucketId = getBucketId();
+		String key = getS3Key();
+		String prefix = StringUtils.isNullOrEmpty(key) ? "" : endsWithSlash(key);
+		S3BulkDelete bulk = new S3BulkDelete(this, bucketId,
+				S3FileSystemConfigBuilder.getInstance().getDeleteConcurrency(getFileSystem().getFileSystemOptions()),
+				((S3FileSystem) getFileSystem()).getTransferExecutor());
+		final ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucketId).withPrefix(prefix);
+		try {
+			ListObjectsV2Result listing;
+			do {
+				listing = exec(new S3Op<ListObjectsV2Result>() {
+					@Override
+					public ListObjectsV2Result exec(AmazonS3 service) {
+						return service.listObjectsV2(req);
+					}
+				});
+				for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+					bulk.add(summary.getKey());
+				}
+				req.setContinuationToken(listing.getNextContinuationToken());
+			} while (listing.isTruncated());
+			return bulk.finish();
+		} catch (InterruptedIOException | AmazonClientException e) {
+			throw new FileSystemException(e);
+		} finally {
+			invalidateCached(true);
+		}
+	}
+
 	@Override
 	protected void doDetach() throws Exception {
 		if (objectType != null) {
@@ -579,14 +814,32 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 			throw new IOException("Cannot open root or buckets.");
 		default:
 			final String objectPath = getName().getPath();
+			S3FileSystemConfigBuilder config = S3FileSystemConfigBuilder.getInstance();
+			int concurrency = config.getReadConcurrency(getFileSystem().getFileSystemOptions());
+			int chunkSize = config.getReadChunkSize(getFileSystem().getFileSystemOptions());
+			if (concurrency > 1 && objectMetadata != null && objectMetadata.getContentLength() > chunkSize) {
+				logger.info(String.format("Downloading S3 Object: %s (%d concurrent ranges)", objectPath, concurrency));
+				return new S3RangedInputStream(this, getS3Key(), objectMetadata.getETag(),
+						objectMetadata.getContentLength(), chunkSize, concurrency,
+						config.getReadRangeRetries(getFileSystem().getFileSystemOptions()),
+						((S3FileSystem) getFileSystem()).getTransferExecutor());
+			}
 			S3Object obj = null;
 			try {
-				obj = exec(new S3Op<S3Object>() {
-					@Override
-					public S3Object exec(AmazonS3 service) {
-						return service.getObject(getBucketId(), getS3Key());
-					}
-				});
+				FileSystemOptions opts = getFileSystem().getFileSystemOptions();
+				if (config.isHedgedReads(opts)) {
+					S3FileSystem fs = (S3FileSystem) getFileSystem();
+					obj = new S3HedgedGet(this, getBucketId(), getS3Key(), fs.getGetLatencies(), fs.getStatistics(),
+							fs.getTransferExecutor()).get(config.getHedgePercentile(opts),
+									config.getHedgeMinDelay(opts), config.getHedgeMaxRate(opts));
+				} else {
+					obj = exec(new S3Op<S3Object>() {
+						@Override
+						public S3Object exec(AmazonS3 service) {
+							return service.getObject(getBucketId(), getS3Key());
+						}
+					});
+				}
 				logger.info(String.format("Downloading S3 Object: %s", objectPath));
 				if (obj.getObjectMetadata().getContentLength() > 0) {
 					return new S3InputStream(obj);
@@ -600,6 +853,23 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 		}
 	}
 
+	@Override
+	protected RandomAccessContent doGetRandomAccessContent(RandomAccessMode mode) throws Exception {
+		switch (objectType) {
+		case ROOT:
+		case BUCKET:
+			throw new IOException("Cannot open root or buckets.");
+		default:
+			if (mode.requestWrite()) {
+				throw new FileSystemException("vfs.provider/random-access-write.error");
+			}
+			S3FileSystemConfigBuilder config = S3FileSystemConfigBuilder.getInstance();
+			return new S3RandomAccessContent(this, objectMetadata.getETag(), objectMetadata.getContentLength(),
+					config.getRandomAccessBlockSize(getFileSystem().getFileSystemOptions()),
+					config.getRandomAccessCacheBlocks(getFileSystem().getFileSystemOptions()));
+		}
+	}
+
 	@Override
 	protected long doGetLastModifiedTime() throws Exception {
 		switch (objectType) {
@@ -726,6 +996,7 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 				FileObject resolveFile = resolveFile(name);
 				((S3FileObject) resolveFile).bucket = bucket;
 				((S3FileObject) resolveFile).objectType = ObjectType.BUCKET;
+				getMetadataCache().putBucket(name, true);
 				children.add(resolveFile);
 			}
 			;
@@ -743,6 +1014,8 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 			final List<S3ObjectSummary> summaries = new ArrayList<S3ObjectSummary>();
 			final Set<String> commonPrefixes = new TreeSet<String>();
 			list(loReq, summaries, commonPrefixes);
+			final long since = System.currentTimeMillis();
+			final long mark = getMetadataCache().mark();
 			List<FileObject> resolvedChildren = new ArrayList<FileObject>(summaries.size() + commonPrefixes.size());
 			// add the prefixes (non-empty subdirs) first
 			for (String commonPrefix : commonPrefixes) {
@@ -750,7 +1023,7 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 				String stripPath = commonPrefix.substring(path.length());
 				FileObject childObject = resolveFile(stripPath, (stripPath.equals("/")) ? FILE_SYSTEM : CHILD);
 				if ((childObject instanceof S3FileObject) && !stripPath.equals("/")) {
-					((S3FileObject) childObject).objectType = ObjectType.FOLDER;
+					((S3FileObject) childObject).setFolder();
 					resolvedChildren.add(childObject);
 				}
 			}
@@ -761,17 +1034,16 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 					FileObject childObject = resolveFile(stripPath, CHILD);
 					if (childObject instanceof S3FileObject) {
 						S3FileObject s3FileObject = (S3FileObject) childObject;
-						ObjectMetadata childMetadata = new ObjectMetadata();
-						childMetadata.setContentLength(summary.getSize());
-						childMetadata.setContentType(Mimetypes.getInstance().getMimetype(s3FileObject.getName().getBaseName()));
-						childMetadata.setLastModified(summary.getLastModified());
-						childMetadata.setHeader(Headers.ETAG, summary.getETag());
-						s3FileObject.objectMetadata = childMetadata;
-						s3FileObject.objectType = ObjectType.OBJECT;
+						s3FileObject.setSummary(summary);
 						resolvedChildren.add(s3FileObject);
 					}
 				}
 			}
+			if (summaries.size() + commonPrefixes.size() < S3FileSystemConfigBuilder.getInstance()
+					.getMaxListSize(getFileSystem().getFileSystemOptions())) {
+				/* Listing is complete, so anything else in this folder does not exist */
+				getMetadataCache().putListed(getBucketId(), path, mark, since);
+			}
 			return resolvedChildren.toArray(new FileObject[resolvedChildren.size()]);
 		}
 	}
@@ -794,41 +1066,38 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 					final String s3Key = getS3Key(name) + (newFile.isFolder() ? "/" : "");
 					if (newFile.exists())
 						throw new IOException("Target exists.");
-					if (isFolder()) {
-						final ListObjectsRequest loReq = new ListObjectsRequest();
-						loReq.setBucketName(getBucket().getName());
-						loReq.setMarker(okey);
-						exec(new S3Op<Void>() {
-							@Override
-							public Void exec(AmazonS3 service) {
-								ObjectListing listing = null;
-								while (listing == null || listing.isTruncated()) {
-									if (listing == null)
-										listing = service.listObjects(loReq);
-									else
-										listing = service.listNextBatchOfObjects(listing);
-									for (final S3ObjectSummary l : listing.getObjectSummaries()) {
-										if (!l.getKey().startsWith(okey))
-											break;
-										S3FileObject.this.exec(new S3Op<CopyObjectResult>() {
-											@Override
-											public CopyObjectResult exec(AmazonS3 service) {
-												String lk = s3Key + l.getKey().substring(getName().getBaseName().length());
-												return service.copyObject(getBucketId(), l.getKey(), name.getHostName(), lk);
-											}
-										});
+					S3FileObject target = newFile instanceof S3FileObject ? (S3FileObject) newFile : this;
+					S3Copy copy = createCopy();
+					try {
+						if (isFolder()) {
+							final String srcPrefix = endsWithSlash(getS3Key());
+							final String dstPrefix = endsWithSlash(getS3Key(name));
+							final ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(getBucketId())
+									.withPrefix(srcPrefix);
+							ListObjectsV2Result listing;
+							do {
+								listing = exec(new S3Op<ListObjectsV2Result>() {
+									@Override
+									public ListObjectsV2Result exec(AmazonS3 service) {
+										return service.listObjectsV2(req);
 									}
+								});
+								for (S3ObjectSummary l : listing.getObjectSummaries()) {
+									copy.copy(target, getBucketId(), l.getKey(), l.getSize(), name.getHostName(),
+											dstPrefix + l.getKey().substring(srcPrefix.length()));
 								}
-								return null;
-							}
-						});
-					} else {
-						exec(new S3Op<CopyObjectResult>() {
-							@Override
-							public CopyObjectResult exec(AmazonS3 service) {
-								return service.copyObject(getBucketId(), okey, name.getHostName(), s3Key);
-							}
-						});
+								req.setContinuationToken(listing.getNextContinuationToken());
+							} while (listing.isTruncated());
+						} else {
+							copy.copy(target, getBucketId(), okey, getContent().getSize(), name.getHostName(), s3Key);
+						}
+						copy.finish();
+					} catch (IOException | RuntimeException e) {
+						copy.cancel();
+						throw e;
+					} finally {
+						getMetadataCache().invalidate(name.getHostName(), getS3Key(name), true);
+						((S3FileSystem) getFileSystem()).invalidateSnapshots(name.getHostName(), getS3Key(name), true);
 					}
 					deleteAll();
 				}
@@ -841,6 +1110,94 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 		}
 	}
 
+	/**
+	 * Copies another file to this file. When the source is also an S3 object,
+	 * content is copied server side (in parallel, and using multipart copies for
+	 * large objects) rather than streamed through this JVM. When the source is
+	 * a local file, it is uploaded directly from memory mapped parts of the
+	 * file. Otherwise the default behaviour is used.
+	 */
+	@Override
+	public void copyFrom(FileObject file, FileSelector selector) throws FileSystemException {
+		final boolean local = isLocalFile(file);
+		if (!local && !(FileObjectUtils.getAbstractFileObject(file) instanceof S3FileObject)) {
+			super.copyFrom(file, selector);
+			return;
+		}
+		if (!FileObjectUtils.exists(file)) {
+			throw new FileSystemException("vfs.provider/copy-missing-file.error", file);
+		}
+		final List<FileObject> files = new ArrayList<>();
+		file.findFiles(selector, false, files);
+		final List<S3FileObject> created = new ArrayList<>();
+		final List<S3FileObject> changed = new ArrayList<>();
+		S3Copy copy = createCopy();
+		try {
+			for (FileObject srcFile : files) {
+				final String relPath = file.getName().getRelativeName(srcFile.getName());
+				final FileObject destFile = resolveFile(relPath, NameScope.DESCENDENT_OR_SELF);
+				boolean exists = FileObjectUtils.exists(destFile);
+				if (exists && destFile.getType() != srcFile.getType()) {
+					destFile.deleteAll();
+					exists = false;
+				}
+				if (srcFile.getType().hasContent()) {
+					S3FileObject dest = (S3FileObject) FileObjectUtils.getAbstractFileObject(destFile);
+					if (local) {
+						createUpload(dest).upload(srcFile.getPath());
+					} else {
+						S3FileObject src = (S3FileObject) FileObjectUtils.getAbstractFileObject(srcFile);
+						copy.copy(dest, src.getBucketId(), src.getS3Key(), srcFile.getContent().getSize(),
+								dest.getBucketId(), dest.getS3Key());
+					}
+					(exists ? changed : created).add(dest);
+				} else if (srcFile.getType().hasChildren()) {
+					destFile.createFolder();
+				}
+			}
+			copy.finish();
+		} catch (IOException | RuntimeException e) {
+			copy.cancel();
+			throw new FileSystemException("vfs.provider/copy-file.error", e, file, this);
+		} finally {
+			for (S3FileObject f : created) {
+				f.invalidateCached(false);
+			}
+			for (S3FileObject f : changed) {
+				f.invalidateCached(false);
+			}
+		}
+		try {
+			/* The copies happened behind VFS's back, so update state and fire events */
+			for (S3FileObject f : created) {
+				f.refresh();
+				f.handleCreate(FileType.FILE);
+			}
+			for (S3FileObject f : changed) {
+				f.refresh();
+				f.handleChanged();
+			}
+		} catch (Exception e) {
+			throw new FileSystemException(e);
+		}
+	}
+
+	/**
+	 * Refresh this object, discarding anything cached about it so that the
+	 * next access goes back to S3.
+	 */
+	@Override
+	public void refresh() throws FileSystemException {
+		invalidateCached(false);
+		super.refresh();
+	}
+
+	@Override
+	protected void endOutput() throws Exception {
+		invalidateCached(false);
+		super.endOutput();
+	}
+
 	@Override
 	protected boolean doSetLastModifiedTime(final long modtime) throws Exception {
 		switch (objectType) {
@@ -866,12 +1223,7 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 			if (StringUtils.isNullOrEmpty(bucketId)) {
 				throw new IOException("Cannot get bucket for S3 root.");
 			} else {
-				if (exec(new S3Op<Boolean>() {
-					@Override
-					public Boolean exec(AmazonS3 service) {
-						return service.doesBucketExistV2(bucketId);
-					}
-				})) {
+				if (bucketExists(bucketId)) {
 					bucket = new Bucket(bucketId);
 				} else
 					throw new FileNotFoundException(String.format("No bucket named %s", bucketId));
@@ -880,6 +1232,44 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 		return bucket;
 	}
 
+	private boolean bucketExists(final String bucketId) {
+		S3MetadataCache cache = getMetadataCache();
+		Boolean exists = cache.isBucket(bucketId);
+		if (exists == null) {
+			exists = exec(new S3Op<Boolean>() {
+				@Override
+				public Boolean exec(AmazonS3 service) {
+					return service.doesBucketExistV2(bucketId);
+				}
+			});
+			cache.putBucket(bucketId, exists);
+		}
+		return exists;
+	}
+
+	private S3MetadataCache getMetadataCache() {
+		return ((S3FileSystem) getFileSystem()).getMetadataCache();
+	}
+
+	/**
+	 * Forget anything cached about this object, because it has been changed.
+	 * 
+	 * @param descendants also forget everything cached below this object
+	 */
+	void invalidateCached(boolean descendants) {
+		String key = getS3Key();
+		if (!StringUtils.isNullOrEmpty(getBucketId())) {
+			((S3FileSystem) getFileSystem()).invalidateSnapshots(getBucketId(), key == null ? "" : key, descendants);
+		}
+		if (StringUtils.isNullOrEmpty(key)) {
+			if (!StringUtils.isNullOrEmpty(getBucketId())) {
+				getMetadataCache().invalidateBucket(getBucketId());
+			}
+		} else {
+			getMetadataCache().invalidate(getBucketId(), key, descendants);
+		}
+	}
+
 	protected void setRegion(Regions region) {
 		this.region = region;
 	}
@@ -888,7 +1278,71 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 		return ((S3FileSystem) getFileSystem()).tryRegions(this, getRegion(), op);
 	}
 
-	private String getBucketId() {
+	S3FileUpload createUpload(S3FileObject target) {
+		S3FileSystemConfigBuilder config = S3FileSystemConfigBuilder.getInstance();
+		FileSystemOptions opts = getFileSystem().getFileSystemOptions();
+		return new S3FileUpload(target, target.getBucketId(), target.getS3Key(), config.getUploadPartSize(opts),
+				config.getMaxUploadThreads(opts), ((S3FileSystem) getFileSystem()).getUploadExecutor());
+	}
+
+	private static boolean isLocalFile(FileObject file) {
+		return "file".equals(file.getName().getScheme());
+	}
+
+	S3Copy createCopy() {
+		S3FileSystemConfigBuilder config = S3FileSystemConfigBuilder.getInstance();
+		FileSystemOptions opts = getFileSystem().getFileSystemOptions();
+		return new S3Copy(config.getCopyConcurrency(opts), config.getCopyMultipartThreshold(opts),
+				config.getCopyPartSize(opts), ((S3FileSystem) getFileSystem()).getTransferExecutor(),
+				getServerSideEncryption());
+	}
+
+	/**
+	 * Read a byte range of this object fully into a buffer using a single
+	 * ranged GET.
+	 * 
+	 * @param etag if not <code>null</code>, the ETag the object must still have
+	 * @param offset offset of the range in the object
+	 * @param buffer buffer to read into
+	 * @param size number of bytes to read, starting at index 0 of the buffer
+	 * @throws IOException if the range could not be read in full, or the object
+	 *             no longer matches the ETag
+	 */
+	void readRange(final String etag, final long offset, byte[] buffer, final int size) throws IOException {
+		S3Object obj = exec(new S3Op<S3Object>() {
+			@Override
+			public S3Object exec(AmazonS3 service) {
+				GetObjectRequest req = new GetObjectRequest(getBucketId(), getS3Key()).withRange(offset, offset + size - 1);
+				if (etag != null) {
+					req.withMatchingETagConstraint(etag);
+				}
+				return service.getObject(req);
+			}
+		});
+		if (obj == null) {
+			/* Constraint not met */
+			throw new IOException(String.format("Object %s changed during download.", getName().getPath()));
+		}
+		S3ObjectInputStream in = obj.getObjectContent();
+		try {
+			int read = 0;
+			while (read < size) {
+				int r = in.read(buffer, read, size - read);
+				if (r == -1) {
+					throw new IOException(String.format("Range %d-%d of %s ended early, got %d bytes.", offset,
+							offset + size - 1, getName().getPath(), read));
+				}
+				read += r;
+			}
+		} catch (IOException e) {
+			in.abort();
+			throw e;
+		} finally {
+			obj.close();
+		}
+	}
+
+	String getBucketId() {
 		return ((S3FileName) getName()).getHostName();
 	}
 
@@ -896,6 +1350,9 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 		if (region != null)
 			return region;
 		else {
+			Regions known = ((S3FileSystem) getFileSystem()).getBucketRegion(getBucketId());
+			if (known != null)
+				return known;
 			try {
 				if (getParent() == null || !(getParent() instanceof S3FileObject)) {
 					Regions r = ((S3FileSystem) getFileSystem()).getRegion();
@@ -1006,33 +1463,38 @@ public class S3FileObject extends AbstractFileObject<S3FileSystem> {
 	}
 
 	private void list(final ListObjectsRequest loReq, final List<S3ObjectSummary> summaries, final Set<String> commonPrefixes) {
-		exec(new S3Op<Void>() {
-			@Override
-			public Void exec(AmazonS3 service) {
-				ObjectListing listing = null;
-				long max = S3FileSystemConfigBuilder.getInstance().getMaxListSize(getFileSystem().getFileSystemOptions());
-				while (listing == null || listing.isTruncated()) {
-					if (listing == null)
-						listing = service.listObjects(loReq);
-					else
-						listing = service.listNextBatchOfObjects(listing);
-					summaries.addAll(listing.getObjectSummaries());
-					commonPrefixes.addAll(listing.getCommonPrefixes());
-					if (summaries.size() + commonPrefixes.size() >= max) {
-						break;
-					}
-				}
-				while (summaries.size() + commonPrefixes.size() > max) {
-					summaries.remove(0);
-				}
-				for (Iterator<String> it = commonPrefixes.iterator(); it.hasNext();) {
-					it.next();
-					if (summaries.size() + commonPrefixes.size() > max)
-						it.remove();
+		long max = S3FileSystemConfigBuilder.getInstance().getMaxListSize(getFileSystem().getFileSystemOptions());
+		ObjectListing listing = null;
+		/* Each page is retried on its own, so a retry cannot add a page twice */
+		while (listing == null || listing.isTruncated()) {
+			final ObjectListing previous = listing;
+			listing = exec(new S3Op<ObjectListing>() {
+				@Override
+				public ObjectListing exec(AmazonS3 service) {
+					return previous == null ? service.listObjects(loReq) : service.listNextBatchOfObjects(previous);
 				}
-				return null;
+			});
+			summaries.addAll(listing.getObjectSummaries());
+			commonPrefixes.addAll(listing.getCommonPrefixes());
+			if (summaries.size() + commonPrefixes.size() >= max) {
+				break;
 			}
-		});
+		}
+		long over = summaries.size() + commonPrefixes.size() - max;
+		if (over > 0 || listing.isTruncated()) {
+			logger.warn(String.format(
+					"Listing of %s truncated to %d entries. Use walk() to list folders of any size.",
+					loReq.getPrefix(), max));
+		}
+		if (over > 0) {
+			int fromSummaries = (int) Math.min(over, summaries.size());
+			summaries.subList(0, fromSummaries).clear();
+			over -= fromSummaries;
+		}
+		for (Iterator<String> it = commonPrefixes.iterator(); over > 0 && it.hasNext(); over--) {
+			it.next();
+			it.remove();
+		}
 	}
 
 	/**
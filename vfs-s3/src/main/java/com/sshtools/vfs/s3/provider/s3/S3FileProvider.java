@@ -31,7 +31,7 @@ public class S3FileProvider extends AbstractOriginatingFileProvider {
 	public final static Collection<Capability> capabilities = Collections
 			.unmodifiableCollection(Arrays.asList(Capability.CREATE, Capability.DELETE, Capability.GET_TYPE,
 					Capability.GET_LAST_MODIFIED, Capability.SET_LAST_MODIFIED_FILE, Capability.SET_LAST_MODIFIED_FOLDER,
-					Capability.LIST_CHILDREN, Capability.READ_CONTENT, Capability.URI, Capability.WRITE_CONTENT));
+					Capability.LIST_CHILDREN, Capability.READ_CONTENT, Capability.RANDOM_ACCESS_READ, Capability.URI, Capability.WRITE_CONTENT));
 	/**
 	 * Default options for S3 file system.
 	 */
@@ -1,9 +1,19 @@
 package com.sshtools.vfs.s3.provider.s3;
 
+import java.io.InterruptedIOException;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -17,6 +27,8 @@ import org.apache.commons.vfs2.FileType;
 import org.apache.commons.vfs2.provider.AbstractFileName;
 import org.apache.commons.vfs2.provider.AbstractFileSystem;
 
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
@@ -34,8 +46,16 @@ public class S3FileSystem extends AbstractFileSystem {
 	private final AmazonS3 service;
 	private boolean shutdownServiceOnClose = false;
 	private Regions region;
-	private Map<Regions, AmazonS3> regionClients = new HashMap<>();
+	private final ConcurrentMap<Regions, RegionClient> regionClients = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Regions> bucketRegions = new ConcurrentHashMap<>();
 	private S3FileProvider provider;
+	private ExecutorService uploadExecutor;
+	private ExecutorService transferExecutor;
+	private final S3MetadataCache metadataCache;
+	private final S3Statistics statistics = new S3Statistics();
+	private final S3LatencyTracker getLatencies = new S3LatencyTracker(1000);
+	private final ConcurrentMap<String, S3RateLimiter> rateLimiters = new ConcurrentHashMap<>();
+	private final List<S3Snapshot> snapshots = new CopyOnWriteArrayList<>();
 
 	public S3FileSystem(S3FileProvider provider, Regions region, S3FileName fileName, AmazonS3 service,
 			FileSystemOptions fileSystemOptions) throws FileSystemException {
@@ -43,6 +63,9 @@ public class S3FileSystem extends AbstractFileSystem {
 		this.service = service;
 		this.region = region;
 		this.provider = provider;
+		S3FileSystemConfigBuilder config = S3FileSystemConfigBuilder.getInstance();
+		metadataCache = new S3MetadataCache(config.getMetadataCacheTTL(fileSystemOptions),
+				config.getMetadataCacheSize(fileSystemOptions));
 	}
 
 	@Override
@@ -50,31 +73,172 @@ public class S3FileSystem extends AbstractFileSystem {
 		caps.addAll(S3FileProvider.capabilities);
 	}
 
+	S3LatencyTracker getGetLatencies() {
+		return getLatencies;
+	}
+
+	S3MetadataCache getMetadataCache() {
+		return metadataCache;
+	}
+
+	/**
+	 * Discard all snapshots, so that objects are looked up in S3 again.
+	 *
+	 * @see S3FileObject#snapshot()
+	 */
+	public void clearSnapshots() {
+		snapshots.clear();
+	}
+
+	void addSnapshot(S3Snapshot snapshot) {
+		/* A new snapshot replaces any for the same or a narrower prefix */
+		for (S3Snapshot s : snapshots) {
+			if (s.getBucket().equals(snapshot.getBucket()) && s.getPrefix().startsWith(snapshot.getPrefix())) {
+				snapshots.remove(s);
+			}
+		}
+		snapshots.add(0, snapshot);
+	}
+
+	S3Snapshot getSnapshot(String bucket, String key) {
+		for (S3Snapshot s : snapshots) {
+			if (s.covers(bucket, key)) {
+				return s;
+			}
+		}
+		return null;
+	}
+
+	void invalidateSnapshots(String bucket, String key, boolean descendants) {
+		for (S3Snapshot s : snapshots) {
+			if (s.getBucket().equals(bucket)) {
+				s.invalidate(key, descendants);
+			}
+		}
+	}
+
 	protected Regions getRegion() {
 		return region;
 	}
 
+	/**
+	 * Get the counters of requests made by this file system.
+	 *
+	 * @return statistics
+	 */
+	public S3Statistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Run an operation. This is the single path all requests take. If the
+	 * bucket turns out to be in another region, the operation is redirected
+	 * there. Other failures are retried according to the configured
+	 * {@link S3RetryPolicy}, and when S3 throttles requests the rate of
+	 * further requests to the same bucket and top level prefix is limited.
+	 */
 	protected <T> T tryRegions(S3FileObject object, Regions region, S3Op<T> callable) {
 		Regions or = region;
-		boolean autoSwitch = S3FileSystemConfigBuilder.getInstance().isAutoSwitchRegion(getFileSystemOptions());
+		S3FileSystemConfigBuilder config = S3FileSystemConfigBuilder.getInstance();
+		boolean autoSwitch = config.isAutoSwitchRegion(getFileSystemOptions());
+		S3RateLimiter limiter = getRateLimiter(object, false);
 		int tries = 0;
-		for (int i = 0; i < 3; i++) {
+		int attempt = 0;
+		for (int i = 0; i < 3;) {
+			if (limiter != null) {
+				try {
+					limiter.acquire();
+				} catch (InterruptedIOException iioe) {
+					throw new AbortedException(iioe.getMessage(), iioe);
+				}
+			}
+			statistics.request();
 			try {
 				AmazonS3 srv = getService(region);
 				T exec = callable.exec(srv);
+				if (limiter != null) {
+					limiter.succeeded();
+				}
 				return exec;
-			} catch (AmazonS3Exception se) {
+			} catch (AmazonClientException ace) {
+				Regions redirect = ace instanceof AmazonS3Exception ? processRegionRedirect((AmazonS3Exception) ace)
+						: null;
+				if (redirect == null) {
+					limiter = retryOrThrow(object, limiter, ace, attempt++, config);
+					continue;
+				}
+				i++;
 				tries++;
-				region = processRegionRedirect(se);
-				if (!autoSwitch || region == null || or == region)
-					throw se;
-				else
+				region = redirect;
+				if (!autoSwitch || or == region)
+					throw ace;
+				else {
+					statistics.redirect();
 					object.setRegion(region);
+					String bucketId = object.getBucketId();
+					if (bucketId != null && !bucketId.isEmpty()) {
+						/* So other objects in this bucket go straight to the right region */
+						bucketRegions.put(bucketId, region);
+					}
+				}
 			}
 		}
 		throw new AmazonS3Exception("Operation failed. Tried " + tries + " regions.");
 	}
 
+	private S3RateLimiter retryOrThrow(S3FileObject object, S3RateLimiter limiter, AmazonClientException ace,
+			int attempt, S3FileSystemConfigBuilder config) {
+		if (S3BackoffRetryPolicy.isThrottle(ace)) {
+			statistics.throttle();
+			if (limiter == null) {
+				limiter = getRateLimiter(object, config.isAdaptiveRateLimit(getFileSystemOptions()));
+			}
+			if (limiter != null) {
+				limiter.throttled();
+			}
+		}
+		long delay = config.getRetryPolicy(getFileSystemOptions()).getRetryDelay(ace, attempt);
+		if (delay < 0) {
+			throw ace;
+		}
+		statistics.retry();
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Retrying %s in %dms (attempt %d). %s", object.getName(), delay, attempt + 1,
+					ace.getMessage()));
+		}
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AbortedException("Interrupted waiting to retry.", e);
+		}
+		return limiter;
+	}
+
+	/**
+	 * Get the rate limiter for the bucket and top level prefix of an object.
+	 * Unless a maximum request rate is configured, limiters only exist for
+	 * prefixes that have been throttled.
+	 *
+	 * @param object object
+	 * @param create create if there is no limiter yet
+	 * @return limiter or <code>null</code>
+	 */
+	private S3RateLimiter getRateLimiter(S3FileObject object, boolean create) {
+		final int maxRate = S3FileSystemConfigBuilder.getInstance().getMaxRequestRate(getFileSystemOptions());
+		if (maxRate < 1 && !create && rateLimiters.isEmpty()) {
+			return null;
+		}
+		String path = object.getName().getPath();
+		int idx = path.indexOf('/', 1);
+		String key = object.getBucketId() + (idx == -1 ? "" : path.substring(0, idx));
+		S3RateLimiter limiter = rateLimiters.get(key);
+		if (limiter == null && (create || maxRate > 0)) {
+			limiter = rateLimiters.computeIfAbsent(key, k -> new S3RateLimiter(maxRate));
+		}
+		return limiter;
+	}
+
 	protected Regions processRegionRedirect(AmazonS3Exception ex) {
 		String find = "The bucket is in this region: ";
 		String exStr = ex.getMessage();
@@ -100,24 +264,71 @@ public class S3FileSystem extends AbstractFileSystem {
 		return null;
 	}
 
+	/**
+	 * Get the region a bucket is known to be in, as learnt from an earlier
+	 * region redirect.
+	 *
+	 * @param bucketId bucket
+	 * @return region or <code>null</code> if not known
+	 */
+	protected Regions getBucketRegion(String bucketId) {
+		return bucketId == null ? null : bucketRegions.get(bucketId);
+	}
+
+	/**
+	 * Get the client to use for a region. Clients for regions other than the
+	 * file system's own are created on first use and shared. Only one thread
+	 * creates a particular client, others wanting it wait for the result. If
+	 * creation fails, the failure is remembered and further attempts are not
+	 * made until a backoff (doubling with each consecutive failure) has passed.
+	 *
+	 * @param region region
+	 * @return client
+	 */
 	protected AmazonS3 getService(Regions region) {
 		if (Objects.equals(region, this.region)) {
 			return service;
-		} else if (regionClients.containsKey(region)) {
-			AmazonS3 s = regionClients.get(region);
-			if (s == null)
-				throw new IllegalStateException(String.format("Failed to create region specific client for %s.", region));
-			return s;
-		} else {
-			try {
-				AmazonS3 s = provider.getClientForRegion(getRootName(), getFileSystemOptions(), region);
-				regionClients.put(region, s);
-				return s;
-			} catch (FileSystemException e) {
-				regionClients.put(region, null);
-				throw new IllegalStateException(String.format("Failed to create region specific client for %s.", region), e);
-			}
 		}
+		RegionClient client = regionClients.get(region);
+		if (client == null) {
+			client = regionClients.computeIfAbsent(region, RegionClient::new);
+		}
+		return client.get();
+	}
+
+	/**
+	 * Get the executor used to upload the parts of multipart uploads. It is
+	 * shared by all output streams of this file system and is bounded by
+	 * {@link S3FileSystemConfigBuilder#getMaxUploadThreads(FileSystemOptions)}.
+	 *
+	 * @return upload executor
+	 */
+	protected synchronized ExecutorService getUploadExecutor() {
+		if (uploadExecutor == null) {
+			int threads = Math.max(1, S3FileSystemConfigBuilder.getInstance().getMaxUploadThreads(getFileSystemOptions()));
+			uploadExecutor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("S3Upload"));
+		}
+		return uploadExecutor;
+	}
+
+	/**
+	 * Get the executor used for other concurrent transfers, such as ranged
+	 * downloads. It is bounded by
+	 * {@link S3FileSystemConfigBuilder#getMaxTransferThreads(FileSystemOptions)},
+	 * and idle threads are released. Tasks submitted to this executor must not
+	 * wait on other tasks submitted to it.
+	 *
+	 * @return transfer executor
+	 */
+	protected synchronized ExecutorService getTransferExecutor() {
+		if (transferExecutor == null) {
+			int threads = Math.max(1, S3FileSystemConfigBuilder.getInstance().getMaxTransferThreads(getFileSystemOptions()));
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("S3Transfer"));
+			executor.allowCoreThreadTimeOut(true);
+			transferExecutor = executor;
+		}
+		return transferExecutor;
 	}
 
 	@Override
@@ -158,9 +369,19 @@ public class S3FileSystem extends AbstractFileSystem {
 
 	@Override
 	protected void doCloseCommunicationLink() {
+		synchronized (this) {
+			if (uploadExecutor != null) {
+				uploadExecutor.shutdown();
+				uploadExecutor = null;
+			}
+			if (transferExecutor != null) {
+				transferExecutor.shutdownNow();
+				transferExecutor = null;
+			}
+		}
 		if (shutdownServiceOnClose) {
 			service.shutdown();
-			for (AmazonS3 s : regionClients.values())
+			for (RegionClient s : regionClients.values())
 				s.shutdown();
 		}
 	}
@@ -168,4 +389,73 @@ public class S3FileSystem extends AbstractFileSystem {
 	public void setShutdownServiceOnClose(boolean shutdownServiceOnClose) {
 		this.shutdownServiceOnClose = shutdownServiceOnClose;
 	}
+
+	/**
+	 * Lazily created client for a single region.
+	 */
+	private class RegionClient {
+		private static final long MIN_BACKOFF = 1000;
+		private static final long MAX_BACKOFF = 60000;
+
+		private final Regions region;
+		private volatile AmazonS3 client;
+		private FileSystemException failure;
+		private int failures;
+		private long retryAt;
+
+		RegionClient(Regions region) {
+			this.region = region;
+		}
+
+		AmazonS3 get() {
+			AmazonS3 s = client;
+			if (s != null) {
+				return s;
+			}
+			synchronized (this) {
+				if (client == null) {
+					if (failure != null && System.currentTimeMillis() < retryAt) {
+						throw new IllegalStateException(
+								String.format("Failed to create region specific client for %s.", region), failure);
+					}
+					try {
+						client = provider.getClientForRegion(getRootName(), getFileSystemOptions(), region);
+						failure = null;
+						failures = 0;
+					} catch (FileSystemException | RuntimeException e) {
+						failure = e instanceof FileSystemException ? (FileSystemException) e : new FileSystemException(e);
+						retryAt = System.currentTimeMillis()
+								+ Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures++, 16));
+						log.warn(String.format("Failed to create region specific client for %s.", region), e);
+						throw new IllegalStateException(
+								String.format("Failed to create region specific client for %s.", region), e);
+					}
+				}
+				return client;
+			}
+		}
+
+		void shutdown() {
+			AmazonS3 s = client;
+			if (s != null) {
+				s.shutdown();
+			}
+		}
+	}
+
+	static class DaemonThreadFactory implements ThreadFactory {
+		private final AtomicInteger counter = new AtomicInteger();
+		private final String prefix;
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
 }
@@ -31,9 +31,48 @@ public class S3FileSystemConfigBuilder extends FileSystemConfigBuilder {
     private static final String AMAZON_S3_CLIENT = S3FileSystemConfigBuilder.class.getName() + ".AMAZON_S3_CLIENT";
     private static final String MAX_LIST_SIZE = S3FileSystemConfigBuilder.class.getName() + ".MAX_LIST_SIZE";
     private static final String AUTO_REGION = S3FileSystemConfigBuilder.class.getName() + ".AUTO_REGION";
+    private static final String MAX_TRANSFER_THREADS = S3FileSystemConfigBuilder.class.getName() + ".MAX_TRANSFER_THREADS";
+    private static final String READ_CHUNK_SIZE = S3FileSystemConfigBuilder.class.getName() + ".READ_CHUNK_SIZE";
+    private static final String READ_CONCURRENCY = S3FileSystemConfigBuilder.class.getName() + ".READ_CONCURRENCY";
+    private static final String READ_RANGE_RETRIES = S3FileSystemConfigBuilder.class.getName() + ".READ_RANGE_RETRIES";
+    private static final String DELETE_CONCURRENCY = S3FileSystemConfigBuilder.class.getName() + ".DELETE_CONCURRENCY";
+    private static final String COPY_CONCURRENCY = S3FileSystemConfigBuilder.class.getName() + ".COPY_CONCURRENCY";
+    private static final String COPY_MULTIPART_THRESHOLD = S3FileSystemConfigBuilder.class.getName() + ".COPY_MULTIPART_THRESHOLD";
+    private static final String COPY_PART_SIZE = S3FileSystemConfigBuilder.class.getName() + ".COPY_PART_SIZE";
+    private static final String RANDOM_ACCESS_BLOCK_SIZE = S3FileSystemConfigBuilder.class.getName() + ".RANDOM_ACCESS_BLOCK_SIZE";
+    private static final String RANDOM_ACCESS_CACHE_BLOCKS = S3FileSystemConfigBuilder.class.getName() + ".RANDOM_ACCESS_CACHE_BLOCKS";
+    private static final String METADATA_CACHE_TTL = S3FileSystemConfigBuilder.class.getName() + ".METADATA_CACHE_TTL";
+    private static final String METADATA_CACHE_SIZE = S3FileSystemConfigBuilder.class.getName() + ".METADATA_CACHE_SIZE";
+    private static final String UPLOAD_PART_SIZE = S3FileSystemConfigBuilder.class.getName() + ".UPLOAD_PART_SIZE";
+    private static final String HEDGED_READS = S3FileSystemConfigBuilder.class.getName() + ".HEDGED_READS";
+    private static final String HEDGE_PERCENTILE = S3FileSystemConfigBuilder.class.getName() + ".HEDGE_PERCENTILE";
+    private static final String HEDGE_MIN_DELAY = S3FileSystemConfigBuilder.class.getName() + ".HEDGE_MIN_DELAY";
+    private static final String HEDGE_MAX_RATE = S3FileSystemConfigBuilder.class.getName() + ".HEDGE_MAX_RATE";
+    private static final String RETRY_POLICY = S3FileSystemConfigBuilder.class.getName() + ".RETRY_POLICY";
+    private static final String ADAPTIVE_RATE_LIMIT = S3FileSystemConfigBuilder.class.getName() + ".ADAPTIVE_RATE_LIMIT";
+    private static final String MAX_REQUEST_RATE = S3FileSystemConfigBuilder.class.getName() + ".MAX_REQUEST_RATE";
 
     public static final int DEFAULT_MAX_UPLOAD_THREADS = 2;
     public static final long DEFAULT_MAX_LIST_SIZE = 1000;
+    public static final int DEFAULT_MAX_TRANSFER_THREADS = 16;
+    public static final int DEFAULT_READ_CHUNK_SIZE = 1024 * 1024 * 8;
+    public static final int DEFAULT_READ_CONCURRENCY = 1;
+    public static final int DEFAULT_READ_RANGE_RETRIES = 3;
+    public static final int DEFAULT_DELETE_CONCURRENCY = 1;
+    public static final int DEFAULT_COPY_CONCURRENCY = 8;
+    public static final long DEFAULT_COPY_MULTIPART_THRESHOLD = 1024L * 1024 * 1024;
+    public static final long DEFAULT_COPY_PART_SIZE = 1024L * 1024 * 128;
+    public static final int DEFAULT_RANDOM_ACCESS_BLOCK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_RANDOM_ACCESS_CACHE_BLOCKS = 8;
+    public static final long DEFAULT_METADATA_CACHE_TTL = 5000;
+    public static final int DEFAULT_METADATA_CACHE_SIZE = 10000;
+    public static final int DEFAULT_MAX_REQUEST_RATE = 0;
+    public static final long DEFAULT_UPLOAD_PART_SIZE = 1024L * 1024 * 16;
+    public static final int DEFAULT_HEDGE_PERCENTILE = 95;
+    public static final long DEFAULT_HEDGE_MIN_DELAY = 50;
+    public static final int DEFAULT_HEDGE_MAX_RATE = 5;
+
+    private static final S3RetryPolicy DEFAULT_RETRY_POLICY = new S3BackoffRetryPolicy();
 
     private static final Log log = LogFactory.getLog(S3FileSystemConfigBuilder.class);
 
@@ -148,24 +187,476 @@ public class S3FileSystemConfigBuilder extends FileSystemConfigBuilder {
     }
 
     /**
-     * Set maximum number of threads to use for a single large (16MB or more) upload
+     * Set maximum number of threads to use for multipart uploads. This is both the size of the
+     * upload thread pool shared by the file system, and the number of parts a single output
+     * stream may have in flight before further writes block.
+     *
      * @param opts The FileSystemOptions
-     * @param maxRetries maximum number of threads to use for a single large (16MB or more) upload
+     * @param maxThreads maximum number of threads to use for multipart uploads
      */
-    public void setMaxUploadThreads(FileSystemOptions opts, int maxRetries) {
-        setParam(opts, MAX_UPLOAD_THREADS, maxRetries);
+    public void setMaxUploadThreads(FileSystemOptions opts, int maxThreads) {
+        setParam(opts, MAX_UPLOAD_THREADS, maxThreads);
     }
 
     /**
-     * Get maximum number of threads to use for a single large (16MB or more) upload
+     * Get maximum number of threads to use for multipart uploads. This is both the size of the
+     * upload thread pool shared by the file system, and the number of parts a single output
+     * stream may have in flight before further writes block.
      * 
      * @param opts The FileSystemOptions
-     * @return maximum number of threads to use for a single large (16MB or more) upload
+     * @return maximum number of threads to use for multipart uploads
      */
     public int getMaxUploadThreads(FileSystemOptions opts) {
         return getInteger(opts, MAX_UPLOAD_THREADS, DEFAULT_MAX_UPLOAD_THREADS);
     }
     
+    /**
+     * Set the maximum number of threads in the pool the file system uses for concurrent
+     * transfers other than uploads, such as ranged downloads. Idle threads are released.
+     *
+     * @param opts The FileSystemOptions
+     * @param maxThreads maximum number of transfer threads
+     */
+    public void setMaxTransferThreads(FileSystemOptions opts, int maxThreads) {
+        setParam(opts, MAX_TRANSFER_THREADS, maxThreads);
+    }
+
+    /**
+     * Get the maximum number of threads in the pool the file system uses for concurrent
+     * transfers other than uploads, such as ranged downloads. Idle threads are released.
+     *
+     * @param opts The FileSystemOptions
+     * @return maximum number of transfer threads
+     */
+    public int getMaxTransferThreads(FileSystemOptions opts) {
+        return getInteger(opts, MAX_TRANSFER_THREADS, DEFAULT_MAX_TRANSFER_THREADS);
+    }
+
+    /**
+     * Set the size of each byte range fetched when an object is downloaded with
+     * concurrent ranged requests.
+     *
+     * @param opts The FileSystemOptions
+     * @param chunkSize range size in bytes
+     * @see #setReadConcurrency(FileSystemOptions, int)
+     */
+    public void setReadChunkSize(FileSystemOptions opts, int chunkSize) {
+        setParam(opts, READ_CHUNK_SIZE, chunkSize);
+    }
+
+    /**
+     * Get the size of each byte range fetched when an object is downloaded with
+     * concurrent ranged requests.
+     *
+     * @param opts The FileSystemOptions
+     * @return range size in bytes
+     */
+    public int getReadChunkSize(FileSystemOptions opts) {
+        return getInteger(opts, READ_CHUNK_SIZE, DEFAULT_READ_CHUNK_SIZE);
+    }
+
+    /**
+     * Set how many byte ranges of a single object may be downloaded (and buffered) at
+     * once. When greater than 1, objects larger than the read chunk size are read
+     * using concurrent ranged requests instead of a single request. Defaults to 1,
+     * a single request.
+     *
+     * @param opts The FileSystemOptions
+     * @param concurrency number of ranges to fetch concurrently
+     */
+    public void setReadConcurrency(FileSystemOptions opts, int concurrency) {
+        setParam(opts, READ_CONCURRENCY, concurrency);
+    }
+
+    /**
+     * Get how many byte ranges of a single object may be downloaded (and buffered) at
+     * once.
+     *
+     * @param opts The FileSystemOptions
+     * @return number of ranges to fetch concurrently
+     */
+    public int getReadConcurrency(FileSystemOptions opts) {
+        return getInteger(opts, READ_CONCURRENCY, DEFAULT_READ_CONCURRENCY);
+    }
+
+    /**
+     * Set how many times a single failed byte range is retried before the
+     * download fails.
+     *
+     * @param opts The FileSystemOptions
+     * @param retries number of retries
+     */
+    public void setReadRangeRetries(FileSystemOptions opts, int retries) {
+        setParam(opts, READ_RANGE_RETRIES, retries);
+    }
+
+    /**
+     * Get how many times a single failed byte range is retried before the
+     * download fails.
+     *
+     * @param opts The FileSystemOptions
+     * @return number of retries
+     */
+    public int getReadRangeRetries(FileSystemOptions opts) {
+        return getInteger(opts, READ_RANGE_RETRIES, DEFAULT_READ_RANGE_RETRIES);
+    }
+
+    /**
+     * Set how many batched delete requests (each of up to 1000 keys) may be in progress at once
+     * when deleting a folder. Defaults to 1, one batch at a time.
+     *
+     * @param opts The FileSystemOptions
+     * @param concurrency number of concurrent delete requests
+     */
+    public void setDeleteConcurrency(FileSystemOptions opts, int concurrency) {
+        setParam(opts, DELETE_CONCURRENCY, concurrency);
+    }
+
+    /**
+     * Get how many batched delete requests (each of up to 1000 keys) may be in progress at once
+     * when deleting a folder.
+     *
+     * @param opts The FileSystemOptions
+     * @return number of concurrent delete requests
+     */
+    public int getDeleteConcurrency(FileSystemOptions opts) {
+        return getInteger(opts, DELETE_CONCURRENCY, DEFAULT_DELETE_CONCURRENCY);
+    }
+
+    /**
+     * Set how many server side copy requests may be in progress at once when copying or
+     * renaming between S3 locations.
+     *
+     * @param opts The FileSystemOptions
+     * @param concurrency number of concurrent copy requests
+     */
+    public void setCopyConcurrency(FileSystemOptions opts, int concurrency) {
+        setParam(opts, COPY_CONCURRENCY, concurrency);
+    }
+
+    /**
+     * Get how many server side copy requests may be in progress at once when copying or
+     * renaming between S3 locations.
+     *
+     * @param opts The FileSystemOptions
+     * @return number of concurrent copy requests
+     */
+    public int getCopyConcurrency(FileSystemOptions opts) {
+        return getInteger(opts, COPY_CONCURRENCY, DEFAULT_COPY_CONCURRENCY);
+    }
+
+    /**
+     * Set the object size at which server side copies switch from a single request to a
+     * multipart copy. Objects over 5 GB are always copied as multipart.
+     *
+     * @param opts The FileSystemOptions
+     * @param threshold threshold in bytes
+     */
+    public void setCopyMultipartThreshold(FileSystemOptions opts, long threshold) {
+        setParam(opts, COPY_MULTIPART_THRESHOLD, threshold);
+    }
+
+    /**
+     * Get the object size at which server side copies switch from a single request to a
+     * multipart copy. Objects over 5 GB are always copied as multipart.
+     *
+     * @param opts The FileSystemOptions
+     * @return threshold in bytes
+     */
+    public long getCopyMultipartThreshold(FileSystemOptions opts) {
+        return getLong(opts, COPY_MULTIPART_THRESHOLD, DEFAULT_COPY_MULTIPART_THRESHOLD);
+    }
+
+    /**
+     * Set the size of each part of a multipart server side copy. It is increased if needed
+     * to stay within the maximum number of parts.
+     *
+     * @param opts The FileSystemOptions
+     * @param partSize part size in bytes
+     */
+    public void setCopyPartSize(FileSystemOptions opts, long partSize) {
+        setParam(opts, COPY_PART_SIZE, partSize);
+    }
+
+    /**
+     * Get the size of each part of a multipart server side copy.
+     *
+     * @param opts The FileSystemOptions
+     * @return part size in bytes
+     */
+    public long getCopyPartSize(FileSystemOptions opts) {
+        return getLong(opts, COPY_PART_SIZE, DEFAULT_COPY_PART_SIZE);
+    }
+
+    /**
+     * Set the size of the blocks fetched (with a single ranged request each) by
+     * random access content.
+     *
+     * @param opts The FileSystemOptions
+     * @param blockSize block size in bytes
+     */
+    public void setRandomAccessBlockSize(FileSystemOptions opts, int blockSize) {
+        setParam(opts, RANDOM_ACCESS_BLOCK_SIZE, blockSize);
+    }
+
+    /**
+     * Get the size of the blocks fetched (with a single ranged request each) by
+     * random access content.
+     *
+     * @param opts The FileSystemOptions
+     * @return block size in bytes
+     */
+    public int getRandomAccessBlockSize(FileSystemOptions opts) {
+        return getInteger(opts, RANDOM_ACCESS_BLOCK_SIZE, DEFAULT_RANDOM_ACCESS_BLOCK_SIZE);
+    }
+
+    /**
+     * Set how many of the most recently used blocks each random access content keeps
+     * in memory.
+     *
+     * @param opts The FileSystemOptions
+     * @param blocks number of cached blocks
+     */
+    public void setRandomAccessCacheBlocks(FileSystemOptions opts, int blocks) {
+        setParam(opts, RANDOM_ACCESS_CACHE_BLOCKS, blocks);
+    }
+
+    /**
+     * Get how many of the most recently used blocks each random access content keeps
+     * in memory.
+     *
+     * @param opts The FileSystemOptions
+     * @return number of cached blocks
+     */
+    public int getRandomAccessCacheBlocks(FileSystemOptions opts) {
+        return getInteger(opts, RANDOM_ACCESS_CACHE_BLOCKS, DEFAULT_RANDOM_ACCESS_CACHE_BLOCKS);
+    }
+
+    /**
+     * Set how long (in milliseconds) facts about buckets and keys are cached for,
+     * such as whether they exist, whether a key is a folder, and an object's metadata.
+     * This saves repeated round trips when the same names are resolved again shortly
+     * afterwards. Changes made through this file system invalidate the cache, but
+     * changes made elsewhere may not be seen until entries expire. Zero disables the
+     * cache.
+     *
+     * @param opts The FileSystemOptions
+     * @param ttl time to live in milliseconds
+     */
+    public void setMetadataCacheTTL(FileSystemOptions opts, long ttl) {
+        setParam(opts, METADATA_CACHE_TTL, ttl);
+    }
+
+    /**
+     * Get how long (in milliseconds) facts about buckets and keys are cached for.
+     *
+     * @param opts The FileSystemOptions
+     * @return time to live in milliseconds
+     * @see #setMetadataCacheTTL(FileSystemOptions, long)
+     */
+    public long getMetadataCacheTTL(FileSystemOptions opts) {
+        return getLong(opts, METADATA_CACHE_TTL, DEFAULT_METADATA_CACHE_TTL);
+    }
+
+    /**
+     * Set the maximum number of keys the metadata cache holds, after which the least
+     * recently used are evicted.
+     *
+     * @param opts The FileSystemOptions
+     * @param size maximum entries
+     */
+    public void setMetadataCacheSize(FileSystemOptions opts, int size) {
+        setParam(opts, METADATA_CACHE_SIZE, size);
+    }
+
+    /**
+     * Get the maximum number of keys the metadata cache holds.
+     *
+     * @param opts The FileSystemOptions
+     * @return maximum entries
+     */
+    public int getMetadataCacheSize(FileSystemOptions opts) {
+        return getInteger(opts, METADATA_CACHE_SIZE, DEFAULT_METADATA_CACHE_SIZE);
+    }
+
+    /**
+     * Set the policy deciding whether failed requests (other than region redirects) are
+     * retried, and how long to wait first. If not set, a {@link S3BackoffRetryPolicy}
+     * with default settings is used.
+     *
+     * @param opts The FileSystemOptions
+     * @param retryPolicy retry policy
+     */
+    public void setRetryPolicy(FileSystemOptions opts, S3RetryPolicy retryPolicy) {
+        setParam(opts, RETRY_POLICY, retryPolicy);
+    }
+
+    /**
+     * Get the policy deciding whether failed requests are retried.
+     *
+     * @param opts The FileSystemOptions
+     * @return retry policy
+     */
+    public S3RetryPolicy getRetryPolicy(FileSystemOptions opts) {
+        S3RetryPolicy retryPolicy = (S3RetryPolicy) getParam(opts, RETRY_POLICY);
+        return retryPolicy == null ? DEFAULT_RETRY_POLICY : retryPolicy;
+    }
+
+    /**
+     * Set whether the rate of requests to a bucket and top level prefix is reduced when
+     * S3 starts throttling them, and gradually increased again as they succeed.
+     *
+     * @param opts The FileSystemOptions
+     * @param adaptive adaptive rate limit
+     */
+    public void setAdaptiveRateLimit(FileSystemOptions opts, boolean adaptive) {
+        setParam(opts, ADAPTIVE_RATE_LIMIT, adaptive);
+    }
+
+    /**
+     * Get whether the rate of requests to a bucket and top level prefix is reduced when
+     * S3 starts throttling them.
+     *
+     * @param opts The FileSystemOptions
+     * @return adaptive rate limit
+     */
+    public boolean isAdaptiveRateLimit(FileSystemOptions opts) {
+        return getBoolean(opts, ADAPTIVE_RATE_LIMIT, true);
+    }
+
+    /**
+     * Set the maximum number of requests per second made to any one bucket and top
+     * level prefix. Zero means there is no maximum, other than any adaptive limit
+     * applied after throttling.
+     *
+     * @param opts The FileSystemOptions
+     * @param rate requests per second
+     */
+    public void setMaxRequestRate(FileSystemOptions opts, int rate) {
+        setParam(opts, MAX_REQUEST_RATE, rate);
+    }
+
+    /**
+     * Get the maximum number of requests per second made to any one bucket and top
+     * level prefix.
+     *
+     * @param opts The FileSystemOptions
+     * @return requests per second
+     */
+    public int getMaxRequestRate(FileSystemOptions opts) {
+        return getInteger(opts, MAX_REQUEST_RATE, DEFAULT_MAX_REQUEST_RATE);
+    }
+
+    /**
+     * Set the size of each part when a local file is copied to S3 as a multipart upload.
+     * Files smaller than this are uploaded with a single request. The size is never less
+     * than the 5 MB S3 minimum, and is increased if needed to keep within 10000 parts.
+     *
+     * @param opts The FileSystemOptions
+     * @param partSize part size in bytes
+     */
+    public void setUploadPartSize(FileSystemOptions opts, long partSize) {
+        setParam(opts, UPLOAD_PART_SIZE, partSize);
+    }
+
+    /**
+     * Get the size of each part when a local file is copied to S3 as a multipart upload.
+     *
+     * @param opts The FileSystemOptions
+     * @return part size in bytes
+     */
+    public long getUploadPartSize(FileSystemOptions opts) {
+        return getLong(opts, UPLOAD_PART_SIZE, DEFAULT_UPLOAD_PART_SIZE);
+    }
+
+    /**
+     * Set whether object reads are hedged. If an object has not started to arrive within
+     * a deadline derived from recent response times, a second request is made and
+     * whichever responds first is used. This trades a little extra load for lower tail
+     * latency, and suits small objects. Reads using concurrent ranges are not hedged.
+     *
+     * @param opts The FileSystemOptions
+     * @param hedgedReads hedged reads
+     * @see #setHedgePercentile(FileSystemOptions, int)
+     * @see #setHedgeMinDelay(FileSystemOptions, long)
+     * @see #setHedgeMaxRate(FileSystemOptions, int)
+     */
+    public void setHedgedReads(FileSystemOptions opts, boolean hedgedReads) {
+        setParam(opts, HEDGED_READS, hedgedReads);
+    }
+
+    /**
+     * Get whether object reads are hedged.
+     *
+     * @param opts The FileSystemOptions
+     * @return hedged reads
+     */
+    public boolean isHedgedReads(FileSystemOptions opts) {
+        return getBoolean(opts, HEDGED_READS, false);
+    }
+
+    /**
+     * Set the percentile of recent response times after which a read is hedged.
+     *
+     * @param opts The FileSystemOptions
+     * @param percentile percentile, 1 to 100
+     */
+    public void setHedgePercentile(FileSystemOptions opts, int percentile) {
+        setParam(opts, HEDGE_PERCENTILE, percentile);
+    }
+
+    /**
+     * Get the percentile of recent response times after which a read is hedged.
+     *
+     * @param opts The FileSystemOptions
+     * @return percentile
+     */
+    public int getHedgePercentile(FileSystemOptions opts) {
+        return getInteger(opts, HEDGE_PERCENTILE, DEFAULT_HEDGE_PERCENTILE);
+    }
+
+    /**
+     * Set the minimum time (in milliseconds) to wait for a response before a read is
+     * hedged, whatever recent response times have been.
+     *
+     * @param opts The FileSystemOptions
+     * @param minDelay minimum delay in milliseconds
+     */
+    public void setHedgeMinDelay(FileSystemOptions opts, long minDelay) {
+        setParam(opts, HEDGE_MIN_DELAY, minDelay);
+    }
+
+    /**
+     * Get the minimum time (in milliseconds) to wait for a response before a read is
+     * hedged.
+     *
+     * @param opts The FileSystemOptions
+     * @return minimum delay in milliseconds
+     */
+    public long getHedgeMinDelay(FileSystemOptions opts) {
+        return getLong(opts, HEDGE_MIN_DELAY, DEFAULT_HEDGE_MIN_DELAY);
+    }
+
+    /**
+     * Set the maximum percentage of reads that may be hedged.
+     *
+     * @param opts The FileSystemOptions
+     * @param maxRate percentage of reads
+     */
+    public void setHedgeMaxRate(FileSystemOptions opts, int maxRate) {
+        setParam(opts, HEDGE_MAX_RATE, maxRate);
+    }
+
+    /**
+     * Get the maximum percentage of reads that may be hedged.
+     *
+     * @param opts The FileSystemOptions
+     * @return percentage of reads
+     */
+    public int getHedgeMaxRate(FileSystemOptions opts) {
+        return getInteger(opts, HEDGE_MAX_RATE, DEFAULT_HEDGE_MAX_RATE);
+    }
+
     /**
      * Get the maximum number of results that may be returned in a call to {@link FileObject#getChildren()}.
      * Any more objects than this in a single folder will be silently discarded from the list.
@@ -0,0 +1,268 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Uploads a local file straight from memory mapped regions of it, rather than
+ * copying it through {@link S3OutputStream}'s heap buffers. Files of at least
+ * one part are sent as a multipart upload with the parts uploaded concurrently
+ * on the file system's upload executor. The MD5 of each part is computed from
+ * the same mapping and sent with it, so S3 verifies what it received.
+ */
+class S3FileUpload {
+	static Log log = LogFactory.getLog(S3FileUpload.class);
+
+	/** The smallest part S3 allows (other than the last) */
+	static final long MIN_PART_SIZE = 1024 * 1024 * 5;
+	/** The maximum number of parts in a multipart upload */
+	static final int MAX_PARTS = 10000;
+
+	private final S3FileObject target;
+	private final String bucketName;
+	private final String key;
+	private final long partSize;
+	private final int concurrency;
+	private final ExecutorService executor;
+	private final Deque<Future<PartETag>> pending = new ArrayDeque<>();
+	private final List<Future<PartETag>> parts = new ArrayList<>();
+
+	S3FileUpload(S3FileObject target, String bucketName, String key, long partSize, int concurrency,
+			ExecutorService executor) {
+		this.target = target;
+		this.bucketName = bucketName;
+		this.key = key;
+		this.partSize = Math.max(MIN_PART_SIZE, partSize);
+		this.concurrency = Math.max(1, concurrency);
+		this.executor = executor;
+	}
+
+	/**
+	 * Upload a file, returning when it has been completely written.
+	 *
+	 * @param path local file
+	 * @throws IOException on error
+	 */
+	void upload(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < partSize) {
+				putObject(channel.map(MapMode.READ_ONLY, 0, size));
+			} else {
+				multipartUpload(channel, size);
+			}
+		}
+	}
+
+	private void putObject(final MappedByteBuffer buffer) {
+		final ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(buffer.remaining());
+		metadata.setContentMD5(BinaryUtils.toBase64(md5(buffer)));
+		target.exec(new S3Op<Void>() {
+			@Override
+			public Void exec(AmazonS3 service) {
+				service.putObject(new PutObjectRequest(bucketName, key, new ByteBufferInputStream(buffer), metadata));
+				return null;
+			}
+		});
+	}
+
+	private void multipartUpload(FileChannel channel, long size) throws IOException {
+		final String uploadId = target.exec(new S3Op<String>() {
+			@Override
+			public String exec(AmazonS3 service) {
+				return service.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+			}
+		});
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Uploading %d bytes to %s/%s as multipart upload %s", size, bucketName, key, uploadId));
+		}
+		try {
+			long thisPartSize = Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+			int partNumber = 1;
+			for (long offset = 0; offset < size; offset += thisPartSize) {
+				long length = Math.min(thisPartSize, size - offset);
+				MappedByteBuffer slice = channel.map(MapMode.READ_ONLY, offset, length);
+				submit(new UploadPartCallable(uploadId, partNumber++, slice, offset + length == size));
+			}
+			final List<PartETag> etags = new ArrayList<>(parts.size());
+			for (Future<PartETag> f : parts) {
+				etags.add(f.get());
+			}
+			target.exec(new S3Op<Void>() {
+				@Override
+				public Void exec(AmazonS3 service) {
+					service.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, etags));
+					return null;
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			abort(uploadId);
+			throw new InterruptedIOException("Interrupted waiting for multipart upload.");
+		} catch (ExecutionException e) {
+			abort(uploadId);
+			throw new IOException("Multipart upload failed ", e.getCause());
+		} catch (IOException | RuntimeException e) {
+			abort(uploadId);
+			throw e;
+		}
+	}
+
+	private void submit(Callable<PartETag> task) throws InterruptedException, ExecutionException {
+		while (pending.size() >= concurrency) {
+			/* Bounds how much of the file is mapped and being uploaded at once */
+			pending.poll().get();
+		}
+		Future<PartETag> f = executor.submit(task);
+		pending.add(f);
+		parts.add(f);
+	}
+
+	private void abort(final String uploadId) {
+		for (Future<PartETag> f : parts) {
+			f.cancel(true);
+		}
+		try {
+			target.exec(new S3Op<Void>() {
+				@Override
+				public Void exec(AmazonS3 service) {
+					service.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+					return null;
+				}
+			});
+		} catch (RuntimeException e) {
+			log.warn(String.format("Failed to abort upload %s", uploadId), e);
+		}
+	}
+
+	private static byte[] md5(ByteBuffer buffer) {
+		try {
+			MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+			messageDigest.update(buffer.duplicate());
+			return messageDigest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MessageDigest could not be initialized because it uses an unknown algorithm", e);
+		}
+	}
+
+	private class UploadPartCallable implements Callable<PartETag> {
+		private final String uploadId;
+		private final int partNumber;
+		private final ByteBuffer buffer;
+		private final boolean last;
+
+		UploadPartCallable(String uploadId, int partNumber, ByteBuffer buffer, boolean last) {
+			this.uploadId = uploadId;
+			this.partNumber = partNumber;
+			this.buffer = buffer;
+			this.last = last;
+		}
+
+		@Override
+		public PartETag call() throws Exception {
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Uploading part %d/%s", partNumber, uploadId));
+			}
+			final String md5 = BinaryUtils.toBase64(md5(buffer));
+			return target.exec(new S3Op<PartETag>() {
+				@Override
+				public PartETag exec(AmazonS3 service) {
+					return service.uploadPart(new UploadPartRequest().withBucketName(bucketName).withKey(key)
+							.withUploadId(uploadId).withInputStream(new ByteBufferInputStream(buffer))
+							.withPartNumber(partNumber).withLastPart(last).withPartSize(buffer.remaining())
+							.withMD5Digest(md5)).getPartETag();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reads a buffer without copying it, and without changing its position so
+	 * a retry can read it again.
+	 */
+	static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		private int mark;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer.duplicate();
+			this.mark = this.buffer.position();
+		}
+
+		@Override
+		public int read() throws IOException {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + count);
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return buffer.remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			mark = buffer.position();
+		}
+
+		@Override
+		public synchronized void reset() throws IOException {
+			buffer.position(mark);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Gets an object, issuing a second identical request if the first has not
+ * responded within a deadline, and using whichever responds first. The
+ * deadline is a percentile of recent response times (the time until the
+ * response headers, and so the first byte of content, arrive), but never
+ * less than a minimum. The proportion of requests that may be hedged is
+ * capped, so a general slowdown does not double the load.
+ * <p>
+ * The request that loses is cancelled, or if it has already responded its
+ * connection is aborted.
+ */
+class S3HedgedGet {
+	static Log log = LogFactory.getLog(S3HedgedGet.class);
+
+	/** Hedging only starts once this many response times are known */
+	static final int MIN_SAMPLES = 20;
+
+	private final S3FileObject file;
+	private final String bucketName;
+	private final String key;
+	private final S3LatencyTracker latencies;
+	private final S3Statistics statistics;
+	private final ExecutorService executor;
+	private final AtomicBoolean claimed = new AtomicBoolean();
+
+	S3HedgedGet(S3FileObject file, String bucketName, String key, S3LatencyTracker latencies,
+			S3Statistics statistics, ExecutorService executor) {
+		this.file = file;
+		this.bucketName = bucketName;
+		this.key = key;
+		this.latencies = latencies;
+		this.statistics = statistics;
+		this.executor = executor;
+	}
+
+	/**
+	 * Get the object.
+	 *
+	 * @param percentile percentile of recent response times to use as the
+	 *            deadline
+	 * @param minDelay minimum deadline in milliseconds
+	 * @param maxRate maximum percentage of requests that may be hedged
+	 * @return object
+	 * @throws IOException on error
+	 */
+	S3Object get(int percentile, long minDelay, int maxRate) throws IOException {
+		statistics.hedgeableGet();
+		if (latencies.getCount() < MIN_SAMPLES) {
+			try {
+				return new GetCallable().call();
+			} catch (IOException | RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+		long deadline = Math.max(minDelay, latencies.getPercentile(percentile));
+		CompletionService<S3Object> completion = new ExecutorCompletionService<>(executor);
+		List<Future<S3Object>> requests = new ArrayList<>(2);
+		Future<S3Object> hedge = null;
+		S3Object result = null;
+		try {
+			requests.add(completion.submit(new GetCallable()));
+			Future<S3Object> done = completion.poll(deadline, TimeUnit.MILLISECONDS);
+			if (done == null && statistics.tryHedge(maxRate)) {
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("No response for %s/%s after %dms, hedging.", bucketName, key, deadline));
+				}
+				hedge = completion.submit(new GetCallable());
+				requests.add(hedge);
+			}
+			ExecutionException error = null;
+			for (int i = done == null ? 0 : 1; ; i++) {
+				if (done == null) {
+					done = completion.take();
+				}
+				try {
+					result = done.get();
+					if (result != null) {
+						if (done == hedge) {
+							statistics.hedgeWon();
+						}
+						return result;
+					}
+				} catch (ExecutionException ee) {
+					if (error == null) {
+						error = ee;
+					}
+				}
+				if (i + 1 >= requests.size()) {
+					break;
+				}
+				done = null;
+			}
+			Throwable cause = error == null ? null : error.getCause();
+			throw cause instanceof IOException ? (IOException) cause
+					: new IOException(String.format("Failed to get %s/%s.", bucketName, key), cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + key);
+		} finally {
+			if (result == null) {
+				/* Giving up, so make sure nothing that responds is left open */
+				claimed.set(true);
+				for (Future<S3Object> f : requests) {
+					if (f.isDone() && !f.isCancelled()) {
+						try {
+							abort(f.get());
+						} catch (InterruptedException | ExecutionException e) {
+							// Nothing to release
+						}
+					}
+				}
+			}
+			for (Future<S3Object> f : requests) {
+				f.cancel(true);
+			}
+		}
+	}
+
+	private static void abort(S3Object obj) {
+		if (obj != null) {
+			obj.getObjectContent().abort();
+			try {
+				obj.close();
+			} catch (IOException ioe) {
+				log.debug("Failed to close aborted request.", ioe);
+			}
+		}
+	}
+
+	private class GetCallable implements Callable<S3Object> {
+		@Override
+		public S3Object call() throws Exception {
+			long started = System.nanoTime();
+			S3Object obj = file.exec(new S3Op<S3Object>() {
+				@Override
+				public S3Object exec(AmazonS3 service) {
+					return service.getObject(bucketName, key);
+				}
+			});
+			latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+			if (claimed.compareAndSet(false, true)) {
+				return obj;
+			}
+			/* Lost the race, don't read the rest of the content */
+			abort(obj);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latencies of some kind of request, and provides
+ * percentiles of them. Percentiles are recalculated only every so many new
+ * samples.
+ */
+class S3LatencyTracker {
+	private static final int RECALCULATE_EVERY = 32;
+
+	private final long[] samples;
+	private final long[] sorted;
+	private int next;
+	private int count;
+	private int sinceSorted;
+	private int sortedCount;
+
+	S3LatencyTracker(int size) {
+		samples = new long[Math.max(1, size)];
+		sorted = new long[samples.length];
+	}
+
+	synchronized void record(long latency) {
+		samples[next] = latency;
+		next = (next + 1) % samples.length;
+		if (count < samples.length) {
+			count++;
+		}
+		sinceSorted++;
+	}
+
+	synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Get a percentile of the recorded latencies.
+	 *
+	 * @param percentile percentile, 0 to 100
+	 * @return latency, or -1 if nothing has been recorded
+	 */
+	synchronized long getPercentile(int percentile) {
+		if (count == 0) {
+			return -1;
+		}
+		if (sinceSorted > 0 && (sinceSorted >= RECALCULATE_EVERY || sortedCount < RECALCULATE_EVERY)) {
+			System.arraycopy(samples, 0, sorted, 0, count);
+			Arrays.sort(sorted, 0, count);
+			sortedCount = count;
+			sinceSorted = 0;
+		}
+		int idx = (int) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * sortedCount) - 1;
+		return sorted[Math.max(0, Math.min(sortedCount - 1, idx))];
+	}
+}
@@ -0,0 +1,115 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import static org.apache.commons.vfs2.FileName.SEPARATOR;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.NameScope;
+import org.apache.commons.vfs2.util.FileObjectUtils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Iterates over the keys under a folder a page at a time using
+ * <code>listObjectsV2</code>. Only the current page is held in memory, and the
+ * next page is not requested until the current one has been consumed.
+ *
+ * @see S3FileObject#walk(String, boolean)
+ */
+class S3ListingIterator implements Iterator<FileObject> {
+	private final S3FileObject folder;
+	private final String base;
+	private final ListObjectsV2Request request;
+	private final Deque<FileObject> page = new ArrayDeque<>();
+	private boolean done;
+
+	S3ListingIterator(S3FileObject folder, String bucketName, String base, String prefix, boolean recursive) {
+		this.folder = folder;
+		this.base = base;
+		request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(base + prefix);
+		if (!recursive) {
+			request.setDelimiter(SEPARATOR);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (page.isEmpty() && !done) {
+			nextPage();
+		}
+		return !page.isEmpty();
+	}
+
+	@Override
+	public FileObject next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.poll();
+	}
+
+	private void nextPage() {
+		ListObjectsV2Result listing = folder.exec(new S3Op<ListObjectsV2Result>() {
+			@Override
+			public ListObjectsV2Result exec(AmazonS3 service) {
+				return service.listObjectsV2(request);
+			}
+		});
+		try {
+			for (String commonPrefix : listing.getCommonPrefixes()) {
+				FileObject child = resolve(commonPrefix);
+				if (child != null) {
+					toS3(child).setFolder();
+					page.add(child);
+				}
+			}
+			for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+				if (summary.getKey().equals(base)) {
+					/* The placeholder for the folder itself */
+					continue;
+				}
+				FileObject child = resolve(summary.getKey());
+				if (child != null) {
+					if (summary.getKey().endsWith(SEPARATOR)) {
+						toS3(child).setFolder();
+					} else {
+						toS3(child).setSummary(summary);
+					}
+					page.add(child);
+				}
+			}
+		} catch (FileSystemException fse) {
+			throw new UncheckedIOException(fse);
+		}
+		if (listing.isTruncated()) {
+			request.setContinuationToken(listing.getNextContinuationToken());
+		} else {
+			done = true;
+		}
+	}
+
+	private FileObject resolve(String key) throws FileSystemException {
+		String relative = key.substring(base.length());
+		if (relative.endsWith(SEPARATOR)) {
+			relative = relative.substring(0, relative.length() - 1);
+		}
+		if (relative.isEmpty()) {
+			return null;
+		}
+		FileObject child = folder.resolveFile(relative, NameScope.DESCENDENT);
+		return FileObjectUtils.getAbstractFileObject(child) instanceof S3FileObject ? child : null;
+	}
+
+	private S3FileObject toS3(FileObject file) throws FileSystemException {
+		return (S3FileObject) FileObjectUtils.getAbstractFileObject(file);
+	}
+}
@@ -0,0 +1,228 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * A bounded cache of what is known about buckets and keys, so that attaching
+ * a file object does not always need a round trip (or three). Facts expire
+ * after a fixed time to live, and the least recently used are evicted when the
+ * cache is full.
+ * <p>
+ * Besides individual keys, the cache remembers which folders have been listed
+ * in full. A key directly inside such a folder that has no entry of its own is
+ * known not to exist. This only holds while every key from the listing is
+ * still cached, so the folder is forgotten as soon as any key directly inside
+ * it is evicted, expires or is invalidated.
+ */
+class S3MetadataCache {
+
+	enum Kind {
+		OBJECT, FOLDER, MISSING
+	}
+
+	static class Entry {
+		private final Kind kind;
+		private final ObjectMetadata metadata;
+		private final long expires;
+
+		Entry(Kind kind, ObjectMetadata metadata, long expires) {
+			this.kind = kind;
+			this.metadata = metadata;
+			this.expires = expires;
+		}
+
+		Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * Get a copy of the metadata, so the caller may modify it.
+		 *
+		 * @return metadata
+		 */
+		ObjectMetadata getMetadata() {
+			return metadata == null ? new ObjectMetadata() : metadata.clone();
+		}
+	}
+
+	private final long ttl;
+	private final Map<String, Entry> entries;
+	private final Map<String, Long> buckets;
+	private final Map<String, Long> listed;
+	private long removals;
+
+	S3MetadataCache(long ttl, final int maxEntries) {
+		this.ttl = ttl;
+		this.listed = lru(maxEntries);
+		this.buckets = lru(maxEntries);
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > maxEntries) {
+					removed(eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	boolean isEnabled() {
+		return ttl > 0;
+	}
+
+	synchronized Boolean isBucket(String bucket) {
+		Long expires = buckets.get(bucket);
+		if (expires == null) {
+			return null;
+		}
+		if (Math.abs(expires) < System.currentTimeMillis()) {
+			buckets.remove(bucket);
+			return null;
+		}
+		return expires > 0;
+	}
+
+	synchronized void putBucket(String bucket, boolean exists) {
+		if (isEnabled()) {
+			long expires = System.currentTimeMillis() + ttl;
+			buckets.put(bucket, exists ? expires : -expires);
+		}
+	}
+
+	synchronized void invalidateBucket(String bucket) {
+		buckets.remove(bucket);
+		invalidate(bucket, "", true);
+	}
+
+	synchronized Entry get(String bucket, String key) {
+		String k = bucket + '/' + key;
+		long now = System.currentTimeMillis();
+		Entry e = entries.get(k);
+		if (e != null) {
+			if (e.expires >= now) {
+				return e;
+			}
+			entries.remove(k);
+			removed(k);
+			return null;
+		}
+		/* Not known, but if the parent folder was listed in full it does not exist */
+		String parent = bucket + '/' + parentPrefix(key);
+		Long expires = listed.get(parent);
+		if (expires != null) {
+			if (expires >= now) {
+				return new Entry(Kind.MISSING, null, expires);
+			}
+			listed.remove(parent);
+		}
+		return null;
+	}
+
+	synchronized void putObject(String bucket, String key, ObjectMetadata metadata) {
+		put(bucket, key, new Entry(Kind.OBJECT, metadata.clone(), System.currentTimeMillis() + ttl));
+	}
+
+	synchronized void putFolder(String bucket, String key) {
+		put(bucket, key, new Entry(Kind.FOLDER, null, System.currentTimeMillis() + ttl));
+	}
+
+	synchronized void putMissing(String bucket, String key) {
+		put(bucket, key, new Entry(Kind.MISSING, null, System.currentTimeMillis() + ttl));
+	}
+
+	/**
+	 * Mark the start of adding the keys of a listing, to later pass to
+	 * {@link #putListed(String, String, long, long)}.
+	 *
+	 * @return mark
+	 */
+	synchronized long mark() {
+		return removals;
+	}
+
+	/**
+	 * Record that every key directly inside a folder has been added to the
+	 * cache from a complete listing. Nothing is recorded if any key may have
+	 * left the cache since the keys started being added.
+	 *
+	 * @param bucket bucket
+	 * @param prefix folder prefix, ending with a separator (or empty for the
+	 *            bucket root)
+	 * @param mark from {@link #mark()}, taken before the keys were added
+	 * @param since time the keys started being added, so this expires no
+	 *            later than any of them
+	 */
+	synchronized void putListed(String bucket, String prefix, long mark, long since) {
+		if (isEnabled() && mark == removals) {
+			listed.put(bucket + '/' + prefix, since + ttl);
+		}
+	}
+
+	/**
+	 * Forget about a key (and optionally everything below it), and that its
+	 * parent folder was listed, because it has been changed.
+	 *
+	 * @param bucket bucket
+	 * @param key key
+	 * @param descendants also forget everything below the key
+	 */
+	synchronized void invalidate(String bucket, String key, boolean descendants) {
+		String k = bucket + '/' + key;
+		removals++;
+		entries.remove(k);
+		listed.remove(bucket + '/' + parentPrefix(key));
+		if (descendants) {
+			String prefix = key.isEmpty() || key.endsWith("/") ? k : k + '/';
+			for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+				if (it.next().startsWith(prefix)) {
+					it.remove();
+				}
+			}
+			for (Iterator<String> it = listed.keySet().iterator(); it.hasNext();) {
+				if (it.next().startsWith(prefix)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private void put(String bucket, String key, Entry entry) {
+		if (isEnabled()) {
+			entries.put(bucket + '/' + key, entry);
+		}
+	}
+
+	/**
+	 * A key has left the cache, so its folder can no longer be known to have
+	 * been listed in full.
+	 */
+	private void removed(String bucketAndKey) {
+		removals++;
+		int idx = bucketAndKey.indexOf('/');
+		listed.remove(bucketAndKey.substring(0, idx + 1) + parentPrefix(bucketAndKey.substring(idx + 1)));
+	}
+
+	private static String parentPrefix(String key) {
+		String k = key.endsWith("/") ? key.substring(0, key.length() - 1) : key;
+		int idx = k.lastIndexOf('/');
+		return idx == -1 ? "" : k.substring(0, idx + 1);
+	}
+
+	private static <V> Map<String, V> lru(final int maxEntries) {
+		return new LinkedHashMap<String, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+}
@@ -19,19 +19,22 @@
 package com.sshtools.vfs.s3.provider.s3;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
@@ -40,26 +43,41 @@ import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.UploadPartRequest;
-import com.amazonaws.services.s3.model.UploadPartResult;
 import com.amazonaws.util.BinaryUtils;
 
+/**
+ * Output stream that buffers written data into 5 MB parts. Small objects are
+ * written with a single put, anything larger becomes a multipart upload whose
+ * parts are uploaded concurrently on the file system's upload executor. At most
+ * {@link S3FileSystemConfigBuilder#getMaxUploadThreads} parts are in flight (or
+ * being filled) at once, their buffers are reused, and the writer blocks until
+ * one is free.
+ */
 public class S3OutputStream extends OutputStream {
 	static Log log = LogFactory.getLog(S3OutputStream.class);
 	// The minimum size for a multi part is 5 MB, hence the buffer size of 5 MB
 	private static final int BUFFER_SIZE = 1024 * 1024 * 5;
-	private ByteArrayOutputStream currentOutputStream = new ByteArrayOutputStream(BUFFER_SIZE);
 	private final Object monitor = new Object();
+	private final BlockingQueue<byte[]> buffers = new LinkedBlockingQueue<>();
+	private final int maxBuffers;
+	private int allocatedBuffers;
+	private byte[] currentBuffer;
+	private int currentSize;
+	private boolean closed;
 	private int partNumberCounter = 1;
 	private InitiateMultipartUploadResult multiPartUploadResult;
 	private String bucketName;
 	private String objectName;
-	private List<PartETag> results = new ArrayList<>();
+	private List<Future<PartETag>> results = new ArrayList<>();
 	private S3FileObject file;
 
 	S3OutputStream(S3FileObject file, String bucketName, String objectName) {
 		this.file = file;
 		this.bucketName = bucketName;
 		this.objectName = objectName.startsWith("/") ? objectName.substring(1) : objectName;
+		/* One buffer being filled, plus one for each part in flight */
+		this.maxBuffers = Math.max(1,
+				S3FileSystemConfigBuilder.getInstance().getMaxUploadThreads(file.getFileSystem().getFileSystemOptions())) + 1;
 	}
 
 	@Override
@@ -70,35 +88,31 @@ public class S3OutputStream extends OutputStream {
 	@Override
 	public void write(byte[] buf, int off, int len) throws IOException {
 		synchronized (this.monitor) {
+			if (closed) {
+				throw new IOException("Stream closed.");
+			}
 			while (len > 0) {
-				if (this.currentOutputStream.size() < BUFFER_SIZE) {
-					int count = Math.min(len, BUFFER_SIZE - this.currentOutputStream.size());
-					this.currentOutputStream.write(buf, off, count);
-					off += count;
-					len -= count;
+				if (currentBuffer == null) {
+					currentBuffer = takeBuffer();
+					currentSize = 0;
 				}
-				if (this.currentOutputStream.size() == BUFFER_SIZE) {
-					initiateMultiPartIfNeeded();
+				int count = Math.min(len, BUFFER_SIZE - currentSize);
+				System.arraycopy(buf, off, currentBuffer, currentSize, count);
+				currentSize += count;
+				off += count;
+				len -= count;
+				if (currentSize == BUFFER_SIZE) {
 					try {
-						results.add(file.exec(new S3Op<PartETag>() {
-							@Override
-							public PartETag exec(AmazonS3 service) {
-								try {
-									return new UploadPartResultCallable(service, currentOutputStream.toByteArray(),
-											currentOutputStream.size(), bucketName, objectName, multiPartUploadResult.getUploadId(),
-											partNumberCounter++, false).call().getPartETag();
-								} catch (Exception e) {
-									throw new AmazonClientException("Failed to write block.", e);
-								}
-							}
-						}));
-					} catch (Exception e) {
-						if (isMultiPartUpload()) {
-							abortMultiPartUpload();
-						}
-						throw new IOException(e.getMessage(), e);
+						initiateMultiPartIfNeeded();
+						checkParts();
+						submitPart(currentBuffer, currentSize, false);
+					} catch (IOException | RuntimeException e) {
+						abortMultiPartUpload();
+						closed = true;
+						throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
 					} finally {
-						this.currentOutputStream.reset();
+						currentBuffer = null;
+						currentSize = 0;
 					}
 				}
 			}
@@ -108,13 +122,20 @@ public class S3OutputStream extends OutputStream {
 	@Override
 	public void close() throws IOException {
 		synchronized (this.monitor) {
-			if (this.currentOutputStream == null) {
+			if (closed) {
 				return;
 			}
-			if (isMultiPartUpload()) {
-				finishMultiPartUpload();
-			} else {
-				finishSimpleUpload();
+			closed = true;
+			try {
+				if (isMultiPartUpload()) {
+					finishMultiPartUpload();
+				} else {
+					finishSimpleUpload();
+				}
+			} finally {
+				// Release the memory early
+				currentBuffer = null;
+				buffers.clear();
 			}
 		}
 	}
@@ -123,13 +144,33 @@ public class S3OutputStream extends OutputStream {
 		return this.multiPartUploadResult != null;
 	}
 
+	private byte[] takeBuffer() throws IOException {
+		byte[] buf = buffers.poll();
+		if (buf == null) {
+			if (allocatedBuffers < maxBuffers) {
+				allocatedBuffers++;
+				return new byte[BUFFER_SIZE];
+			}
+			try {
+				/* Backpressure, wait for an in-flight part to finish */
+				buf = buffers.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for part upload.");
+			}
+		}
+		return buf;
+	}
+
 	private void finishSimpleUpload() {
 		final ObjectMetadata objectMetadata = new ObjectMetadata();
-		objectMetadata.setContentLength(this.currentOutputStream.size());
-		final byte[] content = this.currentOutputStream.toByteArray();
+		final int size = currentBuffer == null ? 0 : currentSize;
+		final byte[] content = currentBuffer == null ? new byte[0] : currentBuffer;
+		objectMetadata.setContentLength(size);
 		try {
 			MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-			String md5Digest = BinaryUtils.toBase64(messageDigest.digest(content));
+			messageDigest.update(content, 0, size);
+			String md5Digest = BinaryUtils.toBase64(messageDigest.digest());
 			objectMetadata.setContentMD5(md5Digest);
 		} catch (NoSuchAlgorithmException e) {
 			throw new IllegalStateException("MessageDigest could not be initialized because it uses an unknown algorithm", e);
@@ -137,46 +178,76 @@ public class S3OutputStream extends OutputStream {
 		file.exec(new S3Op<Void>() {
 			@Override
 			public Void exec(AmazonS3 service) {
-				service.putObject(bucketName, objectName, new ByteArrayInputStream(content), objectMetadata);
+				service.putObject(bucketName, objectName, new ByteArrayInputStream(content, 0, size), objectMetadata);
 				return null;
 			}
 		});
-		// Release the memory early
-		this.currentOutputStream = null;
 	}
 
 	private void finishMultiPartUpload() throws IOException {
 		try {
+			/*
+			 * The last part may be smaller than the minimum. If data was an exact
+			 * multiple of the part size there is nothing left to send.
+			 */
+			if (currentBuffer != null && currentSize > 0) {
+				submitPart(currentBuffer, currentSize, true);
+			}
+			final List<PartETag> etags = new ArrayList<>(results.size());
+			for (Future<PartETag> f : results) {
+				etags.add(f.get());
+			}
 			file.exec(new S3Op<Void>() {
 				@Override
 				public Void exec(AmazonS3 service) {
-					try {
-						results.add(
-								new UploadPartResultCallable(service, currentOutputStream.toByteArray(), currentOutputStream.size(),
-										bucketName, objectName, multiPartUploadResult.getUploadId(), partNumberCounter++, true).call()
-												.getPartETag());
-					} catch (Exception e) {
-						throw new AmazonClientException("Failed to finish multipart upload.", e);
-					}
 					if(log.isDebugEnabled()) {
 						log.debug("Finishing upload " + multiPartUploadResult.getUploadId());
 					}
 					service.completeMultipartUpload(new CompleteMultipartUploadRequest(multiPartUploadResult.getBucketName(),
-							multiPartUploadResult.getKey(), multiPartUploadResult.getUploadId(), results));
+							multiPartUploadResult.getKey(), multiPartUploadResult.getUploadId(), etags));
 					if(log.isDebugEnabled()) {
 						log.debug("Completed upload " + multiPartUploadResult.getUploadId());
 					}
 					return null;
 				}
 			});
-		} catch (Exception e) {
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			abortMultiPartUpload();
+			throw new InterruptedIOException("Interrupted waiting for multipart upload.");
+		} catch (ExecutionException e) {
 			abortMultiPartUpload();
 			throw new IOException("Multipart upload failed ", e.getCause());
-		} finally {
-			this.currentOutputStream = null;
+		} catch (Exception e) {
+			abortMultiPartUpload();
+			throw new IOException("Multipart upload failed ", e);
+		}
+	}
+
+	/**
+	 * Fail early if any part that has already completed did so with an error,
+	 * rather than waiting until the stream is closed.
+	 */
+	private void checkParts() throws IOException {
+		for (Future<PartETag> f : results) {
+			if (f.isDone()) {
+				try {
+					f.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted checking part upload.");
+				} catch (ExecutionException e) {
+					throw new IOException("Failed to write block.", e.getCause());
+				}
+			}
 		}
 	}
 
+	private void submitPart(byte[] buffer, int size, boolean last) {
+		results.add(((S3FileSystem) file.getFileSystem()).getUploadExecutor().submit(new UploadPartResultCallable(buffer, size,
+				bucketName, objectName, multiPartUploadResult.getUploadId(), partNumberCounter++, last)));
+	}
+
 	private void initiateMultiPartIfNeeded() {
 		if (this.multiPartUploadResult == null) {
 			file.exec(new S3Op<Void>() {
@@ -192,30 +263,35 @@ public class S3OutputStream extends OutputStream {
 
 	private void abortMultiPartUpload() {
 		if (isMultiPartUpload()) {
-			file.exec(new S3Op<Void>() {
-				@Override
-				public Void exec(AmazonS3 service) {
-					service.abortMultipartUpload(new AbortMultipartUploadRequest(multiPartUploadResult.getBucketName(),
-							multiPartUploadResult.getKey(), multiPartUploadResult.getUploadId()));
-					return null;
-				}
-			});
+			for (Future<PartETag> f : results) {
+				f.cancel(true);
+			}
+			try {
+				file.exec(new S3Op<Void>() {
+					@Override
+					public Void exec(AmazonS3 service) {
+						service.abortMultipartUpload(new AbortMultipartUploadRequest(multiPartUploadResult.getBucketName(),
+								multiPartUploadResult.getKey(), multiPartUploadResult.getUploadId()));
+						return null;
+					}
+				});
+			} catch (RuntimeException e) {
+				log.warn(String.format("Failed to abort upload %s", multiPartUploadResult.getUploadId()), e);
+			}
 		}
 	}
 
-	private class UploadPartResultCallable implements Callable<UploadPartResult> {
-		private final AmazonS3 amazonS3;
+	private class UploadPartResultCallable implements Callable<PartETag> {
 		private final int contentLength;
 		private final int partNumber;
 		private final boolean last;
 		private final String bucketName;
 		private final String key;
 		private final String uploadId;
-		private byte[] content;
+		private final byte[] content;
 
-		private UploadPartResultCallable(AmazonS3 amazon, byte[] content, int writtenDataSize, String bucketName, String key,
+		private UploadPartResultCallable(byte[] content, int writtenDataSize, String bucketName, String key,
 				String uploadId, int partNumber, boolean last) {
-			this.amazonS3 = amazon;
 			this.content = content;
 			this.contentLength = writtenDataSize;
 			this.partNumber = partNumber;
@@ -226,23 +302,26 @@ public class S3OutputStream extends OutputStream {
 		}
 
 		@Override
-		public UploadPartResult call() throws Exception {
+		public PartETag call() throws Exception {
 			try {
 				if(log.isDebugEnabled()) {
 					log.debug(String.format("Uploading part %d/%s", partNumber, uploadId));
 				}
-				return this.amazonS3.uploadPart(new UploadPartRequest().withBucketName(this.bucketName).withKey(this.key)
-						.withUploadId(this.uploadId).withInputStream(new ByteArrayInputStream(this.content))
-						.withPartNumber(this.partNumber).withLastPart(this.last).withPartSize(this.contentLength));
+				return file.exec(new S3Op<PartETag>() {
+					@Override
+					public PartETag exec(AmazonS3 service) {
+						return service.uploadPart(new UploadPartRequest().withBucketName(bucketName).withKey(key)
+								.withUploadId(uploadId).withInputStream(new ByteArrayInputStream(content, 0, contentLength))
+								.withPartNumber(partNumber).withLastPart(last).withPartSize(contentLength)).getPartETag();
+					}
+				});
 			} finally {
-				// Release the memory, as the callable may still live inside the
-				// CompletionService which would cause
-				// an exhaustive memory usage
-				this.content = null;
+				// Hand the buffer back to the writer for the next part
+				buffers.offer(content);
 				if(log.isDebugEnabled()) {
 					log.debug(String.format("Finished uploading part %d/%s", partNumber, uploadId));
 				}
 			}
 		}
 	}
-}
\ No newline at end of file
+}
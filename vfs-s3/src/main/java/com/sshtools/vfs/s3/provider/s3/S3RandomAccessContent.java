@@ -0,0 +1,184 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.provider.AbstractRandomAccessContent;
+import org.apache.commons.vfs2.util.RandomAccessMode;
+
+/**
+ * Read only random access to an S3 object. The object is divided into fixed
+ * size blocks, each fetched with a single ranged request when first touched,
+ * and the most recently used blocks are kept in a small LRU cache. A
+ * <code>seek()</code> followed by a short read therefore costs at most one
+ * request.
+ */
+class S3RandomAccessContent extends AbstractRandomAccessContent {
+	private final S3FileObject fileObject;
+	private final String etag;
+	private final long length;
+	private final int blockSize;
+	private final Map<Long, byte[]> blocks;
+	private final DataInputStream dis;
+
+	protected long filePointer = 0;
+	private boolean closed;
+
+	S3RandomAccessContent(final S3FileObject fileObject, String etag, long length, int blockSize, final int cacheBlocks) {
+		super(RandomAccessMode.READ);
+		this.fileObject = fileObject;
+		this.etag = etag;
+		this.length = length;
+		this.blockSize = Math.max(1, blockSize);
+		this.blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > Math.max(1, cacheBlocks);
+			}
+		};
+		this.dis = new DataInputStream(new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return S3RandomAccessContent.this.read(b, off, len);
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skip = Math.max(0, Math.min(n, length - filePointer));
+				filePointer += skip;
+				return skip;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return (int) Math.min(Integer.MAX_VALUE, Math.max(0, length - filePointer));
+			}
+		});
+	}
+
+	public long getFilePointer() throws IOException {
+		return filePointer;
+	}
+
+	public void seek(long pos) throws IOException {
+		if (pos < 0) {
+			throw new FileSystemException("vfs.provider/random-access-invalid-position.error", new Object[] { Long.valueOf(pos) });
+		}
+		filePointer = pos;
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		blocks.clear();
+	}
+
+	public long length() throws IOException {
+		return length;
+	}
+
+	public byte readByte() throws IOException {
+		return dis.readByte();
+	}
+
+	public char readChar() throws IOException {
+		return dis.readChar();
+	}
+
+	public double readDouble() throws IOException {
+		return dis.readDouble();
+	}
+
+	public float readFloat() throws IOException {
+		return dis.readFloat();
+	}
+
+	public int readInt() throws IOException {
+		return dis.readInt();
+	}
+
+	public int readUnsignedByte() throws IOException {
+		return dis.readUnsignedByte();
+	}
+
+	public int readUnsignedShort() throws IOException {
+		return dis.readUnsignedShort();
+	}
+
+	public long readLong() throws IOException {
+		return dis.readLong();
+	}
+
+	public short readShort() throws IOException {
+		return dis.readShort();
+	}
+
+	public boolean readBoolean() throws IOException {
+		return dis.readBoolean();
+	}
+
+	public int skipBytes(int n) throws IOException {
+		return dis.skipBytes(n);
+	}
+
+	public void readFully(byte b[]) throws IOException {
+		dis.readFully(b);
+	}
+
+	public void readFully(byte b[], int off, int len) throws IOException {
+		dis.readFully(b, off, len);
+	}
+
+	public String readUTF() throws IOException {
+		return dis.readUTF();
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return dis;
+	}
+
+	public void setLength(long newLength) throws IOException {
+		throw new FileSystemException("vfs.provider/random-access-write.error");
+	}
+
+	private int read(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Random access content closed.");
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (filePointer >= length) {
+			return -1;
+		}
+		long index = filePointer / blockSize;
+		byte[] block = getBlock(index);
+		int blockOffset = (int) (filePointer - index * blockSize);
+		int count = Math.min(len, block.length - blockOffset);
+		System.arraycopy(block, blockOffset, b, off, count);
+		filePointer += count;
+		return count;
+	}
+
+	private byte[] getBlock(long index) throws IOException {
+		byte[] block = blocks.get(index);
+		if (block == null) {
+			long offset = index * blockSize;
+			block = new byte[(int) Math.min(blockSize, length - offset)];
+			fileObject.readRange(etag, offset, block, block.length);
+			blocks.put(index, block);
+		}
+		return block;
+	}
+}
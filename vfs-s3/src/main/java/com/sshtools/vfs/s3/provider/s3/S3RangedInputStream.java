@@ -0,0 +1,190 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads an object as a sequence of byte ranges that are fetched concurrently
+ * ahead of the reader. Ranges are reassembled in order using a fixed ring of
+ * buffers, so at most <code>concurrency</code> chunks are held in memory. A
+ * range that fails is retried on its own, without restarting the download.
+ * <p>
+ * When the ETag of the object is known, every range is requested with it as a
+ * constraint so a concurrent overwrite of the object fails the read rather
+ * than producing a mix of old and new content.
+ */
+public class S3RangedInputStream extends InputStream {
+	static Log log = LogFactory.getLog(S3RangedInputStream.class);
+
+	private final S3FileObject file;
+	private final String key;
+	private final String etag;
+	private final long length;
+	private final int chunkSize;
+	private final int concurrency;
+	private final int retries;
+	private final ExecutorService executor;
+	private final Deque<Future<Chunk>> pending = new ArrayDeque<>();
+	private final Deque<byte[]> buffers = new ArrayDeque<>();
+	private int allocatedBuffers;
+	private long nextOffset;
+	private Chunk current;
+	private int pos;
+	private boolean closed;
+
+	S3RangedInputStream(S3FileObject file, String key, String etag, long length, int chunkSize,
+			int concurrency, int retries, ExecutorService executor) {
+		this.file = file;
+		this.key = key;
+		this.etag = etag;
+		this.length = length;
+		this.chunkSize = chunkSize;
+		this.concurrency = Math.max(1, concurrency);
+		this.retries = Math.max(0, retries);
+		this.executor = executor;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureChunk()) {
+			return -1;
+		}
+		return current.data[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!ensureChunk()) {
+			return -1;
+		}
+		int count = Math.min(len, current.length - pos);
+		System.arraycopy(current.data, pos, buf, off, count);
+		pos += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return closed || current == null ? 0 : current.length - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			for (Future<Chunk> f : pending) {
+				f.cancel(true);
+			}
+			pending.clear();
+			buffers.clear();
+			current = null;
+		}
+	}
+
+	private boolean ensureChunk() throws IOException {
+		if (closed) {
+			return false;
+		}
+		if (current != null && pos < current.length) {
+			return true;
+		}
+		if (current != null) {
+			/* Fully consumed, so its buffer can take the next range */
+			buffers.push(current.data);
+			current = null;
+		}
+		schedule();
+		Future<Chunk> next = pending.poll();
+		if (next == null) {
+			close();
+			return false;
+		}
+		try {
+			current = next.get();
+			pos = 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new InterruptedIOException("Interrupted waiting for range of " + key);
+		} catch (ExecutionException e) {
+			close();
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+		}
+		schedule();
+		return true;
+	}
+
+	private void schedule() {
+		while (nextOffset < length && pending.size() < concurrency) {
+			byte[] buf = buffers.poll();
+			if (buf == null) {
+				if (allocatedBuffers == concurrency) {
+					break;
+				}
+				allocatedBuffers++;
+				buf = new byte[(int) Math.min(chunkSize, length)];
+			}
+			int size = (int) Math.min(chunkSize, length - nextOffset);
+			pending.add(executor.submit(new RangeCallable(buf, nextOffset, size)));
+			nextOffset += size;
+		}
+	}
+
+	static class Chunk {
+		final byte[] data;
+		final int length;
+
+		Chunk(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private class RangeCallable implements Callable<Chunk> {
+		private final byte[] buffer;
+		private final long offset;
+		private final int size;
+
+		RangeCallable(byte[] buffer, long offset, int size) {
+			this.buffer = buffer;
+			this.offset = offset;
+			this.size = size;
+		}
+
+		@Override
+		public Chunk call() throws Exception {
+			Exception lastError = null;
+			for (int attempt = 0; attempt <= retries; attempt++) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("Range download cancelled.");
+				}
+				try {
+					file.readRange(etag, offset, buffer, size);
+					return new Chunk(buffer, size);
+				} catch (Exception e) {
+					lastError = e;
+					if (log.isDebugEnabled()) {
+						log.debug(String.format("Range %d-%d of %s failed (attempt %d of %d).", offset, offset + size - 1,
+								key, attempt + 1, retries + 1), e);
+					}
+				}
+			}
+			throw new IOException(String.format("Failed to download range %d-%d of %s.", offset, offset + size - 1, key),
+					lastError);
+		}
+	}
+}
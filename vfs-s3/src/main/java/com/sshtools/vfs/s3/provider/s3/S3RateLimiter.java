@@ -0,0 +1,94 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of requests to one bucket and prefix. The
+ * rate adapts to what S3 will accept; it is halved each time a request is
+ * throttled and grows back by about one request per second every second while
+ * requests succeed. When there is no configured maximum, the limiter stops
+ * limiting once the rate has recovered to well above where throttling started.
+ */
+class S3RateLimiter {
+	private static final double MIN_RATE = 1;
+	private static final double UNLIMITED = Double.MAX_VALUE;
+
+	private final double maxRate;
+	private double rate;
+	private double throttledRate;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+	private long windowStart = lastRefill;
+	private int windowCount;
+	private int lastWindowCount;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxRate maximum requests per second, or zero or less for no
+	 *            maximum
+	 */
+	S3RateLimiter(double maxRate) {
+		this.maxRate = maxRate > 0 ? maxRate : UNLIMITED;
+		this.rate = this.maxRate;
+		this.tokens = Math.min(this.maxRate, 1000);
+	}
+
+	/**
+	 * Wait until a request may be made.
+	 *
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	void acquire() throws InterruptedIOException {
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+				lastWindowCount = windowCount;
+				windowCount = 0;
+				windowStart = now;
+			}
+			windowCount++;
+			if (rate == UNLIMITED) {
+				lastRefill = now;
+				return;
+			}
+			tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) / 1e9 * rate);
+			lastRefill = now;
+			/* Reserve a token, even if it is not there yet, and wait for it outside the lock */
+			tokens -= 1;
+			wait = tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+		}
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting to make S3 request.");
+			}
+		}
+	}
+
+	/**
+	 * Slow down because a request was throttled.
+	 */
+	synchronized void throttled() {
+		double current = rate == UNLIMITED ? Math.max(windowCount, lastWindowCount) : rate;
+		rate = Math.max(MIN_RATE, current / 2);
+		throttledRate = current;
+		tokens = Math.min(tokens, 0);
+	}
+
+	/**
+	 * Speed up because a request succeeded.
+	 */
+	synchronized void succeeded() {
+		if (rate != UNLIMITED) {
+			rate = Math.min(maxRate, rate + 1 / rate);
+			if (maxRate == UNLIMITED && rate > throttledRate * 2) {
+				rate = UNLIMITED;
+			}
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Decides whether a failed S3 operation should be tried again, and how long to
+ * wait first. This applies on top of any retries the AWS client itself makes,
+ * so is mostly useful for riding out sustained throttling.
+ *
+ * @see S3FileSystemConfigBuilder#setRetryPolicy(org.apache.commons.vfs2.FileSystemOptions,
+ *      S3RetryPolicy)
+ */
+public interface S3RetryPolicy {
+
+	/**
+	 * Get how long to wait before retrying a failed operation.
+	 *
+	 * @param exception the failure
+	 * @param attempt number of retries already made for this operation,
+	 *            starting at zero
+	 * @return delay in milliseconds, or a negative value to not retry
+	 */
+	long getRetryDelay(AmazonClientException exception, int attempt);
+}
@@ -0,0 +1,279 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * A point in time index of every key under a prefix, built from a single flat
+ * listing. Keys are held in the order S3 lists them (by UTF-8 bytes) as one
+ * byte array plus offsets, with sizes, modification times and ETags in
+ * parallel primitive arrays, so each key costs a few tens of bytes plus its
+ * name. Lookups are binary searches.
+ * <p>
+ * Keys changed through the file system after the snapshot was taken are
+ * marked as stale, and are then looked up as normal.
+ */
+class S3Snapshot {
+	/** Result of looking up a key */
+	enum Kind {
+		OBJECT, FOLDER, MISSING
+	}
+
+	private final String bucket;
+	private final String prefix;
+	private final Set<String> staleKeys = ConcurrentHashMap.newKeySet();
+	private final List<String> stalePrefixes = new CopyOnWriteArrayList<>();
+
+	private byte[] keys = new byte[4096];
+	private int[] offsets = new int[257];
+	private long[] sizes = new long[256];
+	private long[] lastModified = new long[256];
+	private byte[] etags = new byte[256 * 16];
+	private int[] etagParts = new int[256];
+	private int count;
+
+	S3Snapshot(String bucket, String prefix) {
+		this.bucket = bucket;
+		this.prefix = prefix;
+	}
+
+	String getBucket() {
+		return bucket;
+	}
+
+	String getPrefix() {
+		return prefix;
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Whether this snapshot knows about a key in a bucket.
+	 *
+	 * @param bucket bucket
+	 * @param key key
+	 * @return covers key
+	 */
+	boolean covers(String bucket, String key) {
+		return this.bucket.equals(bucket) && key.startsWith(prefix) && !isStale(key);
+	}
+
+	/**
+	 * Add the next key from the listing. Keys must be added in listing order.
+	 *
+	 * @param summary summary
+	 */
+	void add(S3ObjectSummary summary) {
+		byte[] name = summary.getKey().getBytes(StandardCharsets.UTF_8);
+		if (count == sizes.length) {
+			int capacity = count * 2;
+			offsets = Arrays.copyOf(offsets, capacity + 1);
+			sizes = Arrays.copyOf(sizes, capacity);
+			lastModified = Arrays.copyOf(lastModified, capacity);
+			etags = Arrays.copyOf(etags, capacity * 16);
+			etagParts = Arrays.copyOf(etagParts, capacity);
+		}
+		int offset = offsets[count];
+		if (offset + name.length > keys.length) {
+			keys = Arrays.copyOf(keys, Math.max(keys.length * 2, offset + name.length));
+		}
+		System.arraycopy(name, 0, keys, offset, name.length);
+		offsets[count + 1] = offset + name.length;
+		sizes[count] = summary.getSize();
+		Date modified = summary.getLastModified();
+		lastModified[count] = modified == null ? 0 : modified.getTime();
+		etagParts[count] = parseETag(summary.getETag(), etags, count * 16);
+		count++;
+	}
+
+	/**
+	 * Release the spare capacity left over from building.
+	 */
+	void trim() {
+		keys = Arrays.copyOf(keys, offsets[count]);
+		offsets = Arrays.copyOf(offsets, count + 1);
+		sizes = Arrays.copyOf(sizes, count);
+		lastModified = Arrays.copyOf(lastModified, count);
+		etags = Arrays.copyOf(etags, count * 16);
+		etagParts = Arrays.copyOf(etagParts, count);
+	}
+
+	/**
+	 * Find what a key is. A key with no object of its own is a folder if any
+	 * key starts with it followed by a separator.
+	 *
+	 * @param key key, without any trailing separator
+	 * @return kind
+	 */
+	Kind lookup(String key) {
+		if (indexOf(key) >= 0) {
+			return Kind.OBJECT;
+		}
+		byte[] folder = (key + "/").getBytes(StandardCharsets.UTF_8);
+		int idx = search(folder);
+		if (idx < 0) {
+			idx = -(idx + 1);
+		}
+		return idx < count && startsWith(idx, folder) ? Kind.FOLDER : Kind.MISSING;
+	}
+
+	/**
+	 * Get the index of an object.
+	 *
+	 * @param key key
+	 * @return index, or negative if there is no such object
+	 */
+	int indexOf(String key) {
+		return search(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	long getSize(int index) {
+		return sizes[index];
+	}
+
+	long getLastModified(int index) {
+		return lastModified[index];
+	}
+
+	String getETag(int index) {
+		int parts = etagParts[index];
+		if (parts < 0) {
+			return null;
+		}
+		StringBuilder bui = new StringBuilder(40);
+		for (int i = index * 16; i < index * 16 + 16; i++) {
+			bui.append(Character.forDigit((etags[i] >> 4) & 0xf, 16));
+			bui.append(Character.forDigit(etags[i] & 0xf, 16));
+		}
+		if (parts > 0) {
+			bui.append('-').append(parts);
+		}
+		return bui.toString();
+	}
+
+	/**
+	 * Mark a key (and optionally everything below it) as no longer reflecting
+	 * what is in S3.
+	 *
+	 * @param key key
+	 * @param descendants also everything below the key
+	 */
+	void invalidate(String key, boolean descendants) {
+		String k = key.endsWith("/") ? key.substring(0, key.length() - 1) : key;
+		staleKeys.add(k);
+		if (descendants) {
+			stalePrefixes.add(k.isEmpty() ? "" : k + "/");
+		}
+		/* The parent folder may have appeared or gone */
+		int idx = k.lastIndexOf('/');
+		while (idx != -1) {
+			k = k.substring(0, idx);
+			staleKeys.add(k);
+			idx = k.lastIndexOf('/');
+		}
+	}
+
+	private boolean isStale(String key) {
+		String k = key.endsWith("/") ? key.substring(0, key.length() - 1) : key;
+		if (staleKeys.contains(k)) {
+			return true;
+		}
+		for (String p : stalePrefixes) {
+			if (k.startsWith(p)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int search(byte[] key) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(mid, key);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private int compare(int index, byte[] key) {
+		int start = offsets[index];
+		int len = offsets[index + 1] - start;
+		int n = Math.min(len, key.length);
+		for (int i = 0; i < n; i++) {
+			int a = keys[start + i] & 0xff;
+			int b = key[i] & 0xff;
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return len - key.length;
+	}
+
+	private boolean startsWith(int index, byte[] key) {
+		int start = offsets[index];
+		if (offsets[index + 1] - start < key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (keys[start + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Store the 16 bytes of an ETag, which is the hex MD5 of the content or,
+	 * for multipart uploads, of the part digests followed by the number of
+	 * parts.
+	 *
+	 * @return number of parts, zero if not multipart or -1 if not understood
+	 */
+	private static int parseETag(String etag, byte[] dest, int offset) {
+		if (etag == null) {
+			return -1;
+		}
+		if (etag.startsWith("\"") && etag.endsWith("\"") && etag.length() > 1) {
+			etag = etag.substring(1, etag.length() - 1);
+		}
+		int parts = 0;
+		int idx = etag.indexOf('-');
+		try {
+			if (idx != -1) {
+				parts = Integer.parseInt(etag.substring(idx + 1));
+				etag = etag.substring(0, idx);
+			}
+			if (etag.length() != 32) {
+				return -1;
+			}
+			for (int i = 0; i < 16; i++) {
+				int hi = Character.digit(etag.charAt(i * 2), 16);
+				int lo = Character.digit(etag.charAt(i * 2 + 1), 16);
+				if (hi == -1 || lo == -1) {
+					return -1;
+				}
+				dest[offset + i] = (byte) ((hi << 4) | lo);
+			}
+			return parts;
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+}
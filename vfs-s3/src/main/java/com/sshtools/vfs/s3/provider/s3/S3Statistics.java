@@ -0,0 +1,132 @@
+package com.sshtools.vfs.s3.provider.s3;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the requests made by an {@link S3FileSystem}.
+ *
+ * @see S3FileSystem#getStatistics()
+ */
+public class S3Statistics {
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong throttles = new AtomicLong();
+	private final AtomicLong redirects = new AtomicLong();
+	private final AtomicLong hedgeableGets = new AtomicLong();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgesWon = new AtomicLong();
+
+	/**
+	 * Get the number of operations attempted, including retries.
+	 *
+	 * @return requests
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Get the number of operations retried after a failure.
+	 *
+	 * @return retries
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Get the number of operations that S3 asked to slow down.
+	 *
+	 * @return throttles
+	 */
+	public long getThrottles() {
+		return throttles.get();
+	}
+
+	/**
+	 * Get the number of operations redirected to another region.
+	 *
+	 * @return redirects
+	 */
+	public long getRedirects() {
+		return redirects.get();
+	}
+
+	/**
+	 * Get the number of object reads made while hedging was enabled.
+	 *
+	 * @return hedgeable gets
+	 */
+	public long getHedgeableGets() {
+		return hedgeableGets.get();
+	}
+
+	/**
+	 * Get the number of second requests issued because the first was slow.
+	 *
+	 * @return hedges
+	 */
+	public long getHedges() {
+		return hedges.get();
+	}
+
+	/**
+	 * Get the number of hedged requests that responded before the original.
+	 *
+	 * @return hedges won
+	 */
+	public long getHedgesWon() {
+		return hedgesWon.get();
+	}
+
+	void request() {
+		requests.incrementAndGet();
+	}
+
+	void retry() {
+		retries.incrementAndGet();
+	}
+
+	void throttle() {
+		throttles.incrementAndGet();
+	}
+
+	void redirect() {
+		redirects.incrementAndGet();
+	}
+
+	void hedgeableGet() {
+		hedgeableGets.incrementAndGet();
+	}
+
+	/**
+	 * Count a hedge, unless doing so would take hedges over a percentage of
+	 * hedgeable gets.
+	 *
+	 * @param maxRate maximum percentage
+	 * @return whether the hedge may be made
+	 */
+	boolean tryHedge(int maxRate) {
+		while (true) {
+			long current = hedges.get();
+			if ((current + 1) * 100 > hedgeableGets.get() * maxRate) {
+				return false;
+			}
+			if (hedges.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	void hedgeWon() {
+		hedgesWon.incrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"S3Statistics [requests=%d, retries=%d, throttles=%d, redirects=%d, hedgeableGets=%d, hedges=%d, hedgesWon=%d]",
+				getRequests(), getRetries(), getThrottles(), getRedirects(), getHedgeableGets(), getHedges(),
+				getHedgesWon());
+	}
+}
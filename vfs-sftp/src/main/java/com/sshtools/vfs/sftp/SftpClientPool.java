@@ -0,0 +1,353 @@
+package com.sshtools.vfs.sftp;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.vfs2.FileSystemException;
+
+import com.sshtools.client.sftp.SftpClient;
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.ssh.SshConnection;
+
+/**
+ * A bounded pool of SFTP subsystem channels. Channels are opened on demand up
+ * to a maximum, and returned channels are kept idle for reuse (most recently
+ * used first) rather than closed. Idle channels beyond the minimum are closed
+ * once they have been idle for too long, and a channel is checked to still be
+ * open before it is handed out. When every channel is in use, callers wait
+ * for one to be returned, up to a timeout.
+ * <p>
+ * Channels are normally all opened over the one SSH connection. If allowed,
+ * further connections are made and channels spread across them, for servers
+ * that limit the number of channels per connection.
+ */
+class SftpClientPool {
+
+	/**
+	 * Creates further SSH connections for the pool.
+	 */
+	interface ConnectionFactory {
+		/**
+		 * Create a connection.
+		 *
+		 * @return connection, or <code>null</code> if no more may be made
+		 * @throws FileSystemException on error
+		 */
+		SshConnection createConnection() throws FileSystemException;
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final Deque<IdleClient> idle = new ArrayDeque<>();
+	private final Map<SftpClient, SshConnection> owners = new IdentityHashMap<>();
+	private final Map<SshConnection, Integer> channels = new IdentityHashMap<>();
+	private final List<SshConnection> connections = new ArrayList<>();
+	private final SshConnection primary;
+	private final ConnectionFactory connectionFactory;
+	private final int maxSize;
+	private final int minIdle;
+	private final int maxIdle;
+	private final long idleTimeout;
+	private final long waitTimeout;
+	private int maxConnections;
+	private int size;
+	private int pendingConnections;
+	private boolean closed;
+
+	SftpClientPool(SshConnection primary, ConnectionFactory connectionFactory, int maxSize, int minIdle, int maxIdle,
+			long idleTimeout, long waitTimeout, int maxConnections) {
+		this.primary = primary;
+		this.connectionFactory = connectionFactory;
+		this.maxSize = Math.max(1, maxSize);
+		this.minIdle = Math.max(0, minIdle);
+		this.maxIdle = Math.max(this.minIdle, maxIdle);
+		this.idleTimeout = idleTimeout;
+		this.waitTimeout = waitTimeout;
+		this.maxConnections = connectionFactory == null ? 1 : Math.max(1, maxConnections);
+		connections.add(primary);
+		channels.put(primary, 0);
+	}
+
+	/**
+	 * Take a channel from the pool, opening one if none are idle and the pool
+	 * is not at its maximum size, otherwise waiting for one to be returned.
+	 *
+	 * @return client
+	 * @throws IOException if no channel could be had
+	 */
+	SftpClient take() throws IOException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+		SshConnection connection;
+		List<SftpClient> toClose = new ArrayList<>();
+		lock.lock();
+		try {
+			while (true) {
+				if (closed) {
+					throw new FileSystemException("vfs.provider/closed.error");
+				}
+				evict(toClose);
+				while (!idle.isEmpty()) {
+					IdleClient c = idle.pollFirst();
+					if (isValid(c.client)) {
+						return c.client;
+					}
+					discard(c.client);
+					toClose.add(c.client);
+				}
+				if (size < maxSize) {
+					size++;
+					connection = chooseConnection();
+					if (connection != null) {
+						/* Reserve it now, so it is not closed as unused while opening */
+						reserve(connection);
+					}
+					break;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new FileSystemException(String.format(
+							"Timed out waiting for an SFTP channel, all %d are in use.", maxSize));
+				}
+				try {
+					available.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new FileSystemException("Interrupted waiting for an SFTP channel.", e);
+				}
+			}
+		} finally {
+			lock.unlock();
+			quitAll(toClose);
+		}
+
+		/* Open outside the lock, it may take a while */
+		SftpClient client = null;
+		boolean reserved = connection != null;
+		try {
+			if (connection == null) {
+				SshConnection created = null;
+				boolean returned = false;
+				try {
+					created = connectionFactory.createConnection();
+					returned = true;
+				} finally {
+					lock.lock();
+					try {
+						pendingConnections--;
+						if (created != null) {
+							connections.add(created);
+							channels.put(created, 0);
+							connection = created;
+						} else if (returned) {
+							/* No more may be made, share those there are */
+							maxConnections = connections.size();
+							connection = primary;
+						}
+						if (connection != null) {
+							reserve(connection);
+							reserved = true;
+						}
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+			client = new SftpClient(connection);
+			return client;
+		} catch (FileSystemException fse) {
+			throw fse;
+		} catch (Exception e) {
+			throw new FileSystemException("vfs.provider.sftp/connect.error", e);
+		} finally {
+			lock.lock();
+			try {
+				if (client == null) {
+					size--;
+					if (reserved) {
+						unreserve(connection);
+					}
+					available.signal();
+				} else {
+					owners.put(client, connection);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Return a channel to the pool. It is closed instead if it is no longer
+	 * usable or there are already enough idle channels.
+	 *
+	 * @param client client
+	 */
+	void release(SftpClient client) {
+		List<SftpClient> toClose = new ArrayList<>();
+		lock.lock();
+		try {
+			if (closed || !isValid(client) || idle.size() >= maxIdle) {
+				discard(client);
+				toClose.add(client);
+			} else {
+				idle.addFirst(new IdleClient(client));
+			}
+			evict(toClose);
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+		quitAll(toClose);
+	}
+
+	/**
+	 * Close all idle channels, and any extra connections no longer carrying
+	 * a channel. Unlike {@link #close()}, the pool may still be used, and
+	 * opens channels again as they are needed.
+	 */
+	void closeIdle() {
+		List<SftpClient> toClose = new ArrayList<>();
+		List<SshConnection> toDisconnect = new ArrayList<>();
+		lock.lock();
+		try {
+			for (IdleClient c : idle) {
+				toClose.add(c.client);
+				discard(c.client);
+			}
+			idle.clear();
+			for (Iterator<SshConnection> it = connections.iterator(); it.hasNext();) {
+				SshConnection c = it.next();
+				if (c != primary && channels.get(c) == 0) {
+					it.remove();
+					channels.remove(c);
+					toDisconnect.add(c);
+				}
+			}
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		quitAll(toClose);
+		for (SshConnection c : toDisconnect) {
+			c.disconnect();
+		}
+	}
+
+	/**
+	 * Close all idle channels, and any extra connections, for good. Channels
+	 * still in use are closed when they are returned.
+	 */
+	void close() {
+		List<SftpClient> toClose = new ArrayList<>();
+		List<SshConnection> toDisconnect = new ArrayList<>();
+		lock.lock();
+		try {
+			closed = true;
+			for (IdleClient c : idle) {
+				toClose.add(c.client);
+				discard(c.client);
+			}
+			idle.clear();
+			for (SshConnection c : connections) {
+				if (c != primary) {
+					toDisconnect.add(c);
+				}
+			}
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		quitAll(toClose);
+		for (SshConnection c : toDisconnect) {
+			c.disconnect();
+		}
+	}
+
+	private SshConnection chooseConnection() {
+		SshConnection best = null;
+		int bestCount = Integer.MAX_VALUE;
+		for (Iterator<SshConnection> it = connections.iterator(); it.hasNext();) {
+			SshConnection c = it.next();
+			if (!c.isConnected() && c != primary) {
+				it.remove();
+				channels.remove(c);
+				continue;
+			}
+			int count = channels.get(c);
+			if (count < bestCount) {
+				best = c;
+				bestCount = count;
+			}
+		}
+		int perConnection = (maxSize + maxConnections - 1) / maxConnections;
+		if (bestCount >= perConnection && connections.size() + pendingConnections < maxConnections) {
+			/* Caller will make a new connection */
+			pendingConnections++;
+			return null;
+		}
+		return best;
+	}
+
+	private void evict(List<SftpClient> toClose) {
+		long now = System.currentTimeMillis();
+		while (idle.size() > minIdle && now - idle.peekLast().since > idleTimeout) {
+			SftpClient client = idle.pollLast().client;
+			discard(client);
+			toClose.add(client);
+		}
+	}
+
+	private void discard(SftpClient client) {
+		SshConnection connection = owners.remove(client);
+		if (connection != null) {
+			size--;
+			unreserve(connection);
+		}
+	}
+
+	private void reserve(SshConnection connection) {
+		channels.put(connection, channels.getOrDefault(connection, 0) + 1);
+	}
+
+	private void unreserve(SshConnection connection) {
+		Integer count = channels.get(connection);
+		if (count != null) {
+			channels.put(connection, count - 1);
+		}
+	}
+
+	private boolean isValid(SftpClient client) {
+		SshConnection connection = owners.get(client);
+		return !client.isClosed() && connection != null && connection.isConnected();
+	}
+
+	private static void quitAll(List<SftpClient> clients) {
+		for (SftpClient client : clients) {
+			try {
+				client.quit();
+			} catch (Exception e) {
+				if (Log.isDebugEnabled()) {
+					Log.debug("Failed to close SFTP channel.", e);
+				}
+			}
+		}
+	}
+
+	private static class IdleClient {
+		private final SftpClient client;
+		private final long since = System.currentTimeMillis();
+
+		IdleClient(SftpClient client) {
+			this.client = client;
+		}
+	}
+}
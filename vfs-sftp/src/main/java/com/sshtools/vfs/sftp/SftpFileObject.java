@@ -1,25 +1,39 @@
 package com.sshtools.vfs.sftp;
 
+import java.io.File;
 import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSelector;
 import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileSystemOptions;
 import org.apache.commons.vfs2.FileType;
+import org.apache.commons.vfs2.NameScope;
 import org.apache.commons.vfs2.RandomAccessContent;
+import org.apache.commons.vfs2.Selectors;
 import org.apache.commons.vfs2.provider.AbstractFileName;
 import org.apache.commons.vfs2.provider.AbstractFileObject;
 import org.apache.commons.vfs2.provider.UriParser;
+import org.apache.commons.vfs2.util.FileObjectUtils;
 import org.apache.commons.vfs2.util.RandomAccessMode;
 
+import com.sshtools.client.sftp.RemoteHash;
+import com.sshtools.client.sftp.SftpChannel;
 import com.sshtools.client.sftp.SftpClient;
 import com.sshtools.client.sftp.SftpFile;
+import com.sshtools.client.sftp.SftpHandle;
+import com.sshtools.common.logger.Log;
 import com.sshtools.common.sftp.SftpFileAttributes;
 import com.sshtools.common.sftp.SftpStatusException;
 import com.sshtools.common.ssh.SshException;
@@ -66,6 +80,7 @@ public class SftpFileObject extends AbstractFileObject<SftpFileSystem> {
 			sftp.getSubsystemChannel().setAttributes(
 					getName().getPathDecoded(), attrs);
 		} finally {
+			fs.getStatCache().invalidate(getName().getPathDecoded(), false);
 			fs.putClient(sftp);
 		}
 	}
@@ -85,20 +100,36 @@ public class SftpFileObject extends AbstractFileObject<SftpFileSystem> {
 	private void statSelf() throws Exception {
 		final SftpClient sftp = fs.getClient();
 		try {
-			attrs = sftp.stat(getName().getPathDecoded());
-		} catch (final SftpStatusException e) {
-			// Does not exist
-			attrs = null;
+			statSelf(sftp);
 		} finally {
 			fs.putClient(sftp);
 		}
 	}
 
+	/**
+	 * Stat using a client already held, as taking a second from the pool
+	 * while holding one could wait forever when the pool is exhausted.
+	 */
+	private void statSelf(SftpClient sftp) throws Exception {
+		final String path = getName().getPathDecoded();
+		try {
+			attrs = sftp.stat(path);
+		} catch (final SftpStatusException e) {
+			attrs = null;
+			if (e.getStatus() != SftpStatusException.SSH_FX_NO_SUCH_FILE) {
+				// Not known to be missing, so do not remember it as such
+				fs.getStatCache().invalidate(path, false);
+				return;
+			}
+		}
+		fs.getStatCache().put(path, attrs);
+	}
+
 	protected void doCreateFolder() throws Exception {
 		final SftpClient sftp = fs.getClient();
 		try {
 			sftp.mkdir(getName().getPathDecoded());
-			statSelf();
+			statSelf(sftp);
 		} finally {
 			fs.putClient(sftp);
 		}
@@ -127,6 +158,7 @@ public class SftpFileObject extends AbstractFileObject<SftpFileSystem> {
 					getName().getPathDecoded(), attrs);
 			return true;
 		} finally {
+			fs.getStatCache().invalidate(getName().getPathDecoded(), false);
 			fs.putClient(sftp);
 		}
 	}
@@ -136,6 +168,7 @@ public class SftpFileObject extends AbstractFileObject<SftpFileSystem> {
 		try {
 			sftp.rm(getName().getPathDecoded());
 		} finally {
+			fs.getStatCache().invalidate(getName().getPathDecoded(), true);
 			fs.putClient(sftp);
 		}
 	}
@@ -153,11 +186,52 @@ public class SftpFileObject extends AbstractFileObject<SftpFileSystem> {
 			}
 			sftp.rename(oldName, newName);
 		} finally {
+			fs.getStatCache().invalidate(getName().getPathDecoded(), true);
+			fs.getStatCache().invalidate(newfile.getName().getPathDecoded(),
+					true);
 			fs.putClient(sftp);
 		}
 	}
 
 	protected String[] doListChildren() throws Exception {
+		// Extract the child names
+		final ArrayList<String> children = new ArrayList<String>();
+		for (SftpFile file : listEntries()) {
+			children.add(file.getFilename());
+		}
+		return UriParser.encode((String[]) children.toArray(new String[children
+				.size()]));
+	}
+
+	/**
+	 * Lists the children, using the attributes that come with each directory
+	 * entry so that each child does not then need to stat itself when it is
+	 * attached.
+	 */
+	protected FileObject[] doListChildrenResolved() throws Exception {
+		final ArrayList<FileObject> children = new ArrayList<FileObject>();
+		for (SftpFile file : listEntries()) {
+			final FileObject child = resolveFile(
+					UriParser.encode(file.getFilename()), NameScope.CHILD);
+			if (child instanceof SftpFileObject) {
+				((SftpFileObject) child).setListedAttributes(file.attributes());
+			}
+			children.add(child);
+		}
+		return children.toArray(new FileObject[children.size()]);
+	}
+
+	void setListedAttributes(SftpFileAttributes listed) {
+		/*
+		 * Directory entries describe a link itself rather than its target, so
+		 * links are left to stat themselves
+		 */
+		if (!isAttached() && listed != null && !listed.isLink()) {
+			attrs = listed;
+		}
+	}
+
+	private List<SftpFile> listEntries() throws Exception {
 		// List the contents of the folder
 		final SftpFile[] array;
 		final SftpClient sftp = fs.getClient();
@@ -171,16 +245,27 @@ public class SftpFileObject extends AbstractFileObject<SftpFileSystem> {
 					"vfs.provider.sftp/list-children.error");
 		}
 
-		// Extract the child names
-		final ArrayList<String> children = new ArrayList<String>();
+		final List<SftpFile> entries = new ArrayList<SftpFile>(array.length);
 		for (int i = 0; i < array.length; i++) {
 			if (!array[i].getFilename().equals(".")
 					&& !array[i].getFilename().equals("..")) {
-				children.add(array[i].getFilename());
+				entries.add(array[i]);
+				cacheListed(getName().getPathDecoded(),
+						array[i].getFilename(), array[i].attributes());
 			}
 		}
-		return UriParser.encode((String[]) children.toArray(new String[children
-				.size()]));
+		return entries;
+	}
+
+	/**
+	 * Cache the attributes of a directory entry. Links are not cached, as
+	 * their entries describe the link rather than its target.
+	 */
+	void cacheListed(String parentPath, String name, SftpFileAttributes listed) {
+		if (listed != null && !listed.isLink()) {
+			fs.getStatCache().put(parentPath.endsWith("/") ? parentPath + name
+					: parentPath + "/" + name, listed);
+		}
 	}
 
 	protected Map<String, Object> doGetAttributes() throws Exception {
@@ -217,47 +302,52 @@ public class SftpFileObject extends AbstractFileObject<SftpFileSystem> {
 
 	protected RandomAccessContent doGetRandomAccessContent(
 			final RandomAccessMode mode) throws Exception {
-		return new SftpRandomAccessContent(this, mode);
+		return new SftpRandomAccessContent(this, fs, mode);
 	}
 
-	/**
-	 * Creates an input stream to read the file content from.
-	 */
-	InputStream getInputStream(long filePointer) throws IOException {
-		final SftpClient sftp = fs.getClient();
+	private InputStream openInputStream(SftpClient sftp, long filePointer)
+			throws Exception {
+		final SftpFileSystemConfigBuilder config = SftpFileSystemConfigBuilder
+				.getInstance();
+		final FileSystemOptions opts = fs.getFileSystemOptions();
+		if (!config.isPipelinedTransfers(opts)) {
+			return sftp.getInputStream(getName().getPathDecoded(), filePointer);
+		}
+		final SftpHandle handle = sftp.openFile(getName().getPathDecoded(),
+				SftpChannel.OPEN_READ);
+		return new SftpPipelinedInputStream(sftp.getSubsystemChannel(),
+				handle, filePointer, config.getTransferBlockSize(opts),
+				config.getTransferQueueDepth(opts));
+	}
+
+	private OutputStream openOutputStream(SftpClient sftp, boolean bAppend)
+			throws Exception {
+		final SftpFileSystemConfigBuilder config = SftpFileSystemConfigBuilder
+				.getInstance();
+		final FileSystemOptions opts = fs.getFileSystemOptions();
+		if (!config.isPipelinedTransfers(opts)) {
+			return sftp.getOutputStream(getName().getPathDecoded());
+		}
+		final SftpHandle handle = sftp.openFile(getName().getPathDecoded(),
+				SftpChannel.OPEN_WRITE | SftpChannel.OPEN_CREATE
+						| (bAppend ? SftpChannel.OPEN_APPEND
+								: SftpChannel.OPEN_TRUNCATE));
 		try {
-			final InputStream inputStream = sftp.getInputStream(getName()
-					.getPathDecoded(), filePointer);
-			return new FilterInputStream(inputStream) {
-				@Override
-				public void close() throws IOException {
-					try {
-						super.close();
-					} finally {
-						fs.putClient(sftp);
-					}
-				}
-			};
-		} catch (SftpStatusException e) {
-			fs.putClient(sftp);
-			throw new IOException(e.getMessage());
-		} catch (SshException e) {
-			fs.putClient(sftp);
-			throw new SshIOException(e);
+			final long position = bAppend ? handle.getAttributes().getSize()
+					.longValue() : 0;
+			return new SftpPipelinedOutputStream(sftp.getSubsystemChannel(),
+					handle, position, config.getTransferBlockSize(opts),
+					config.getTransferQueueDepth(opts));
 		} catch (Exception e) {
-			fs.putClient(sftp);
-			IOException i = new IOException();
-			i.initCause(e);
-			throw i;
+			handle.close();
+			throw e;
 		}
-
 	}
 
 	protected InputStream doGetInputStream() throws Exception {
 		final SftpClient sftp = fs.getClient();
 		try {
-			final InputStream inputStream = sftp.getInputStream(getName()
-					.getPathDecoded());
+			final InputStream inputStream = openInputStream(sftp, 0);
 			return new FilterInputStream(inputStream) {
 				@Override
 				public void close() throws IOException {
@@ -276,7 +366,25 @@ public class SftpFileObject extends AbstractFileObject<SftpFileSystem> {
 
 	protected void doAttach() throws Exception {
 		super.doAttach();
-		statSelf();
+		if (attrs == null) {
+			final SftpStatCache.Entry cached = fs.getStatCache().get(
+					getName().getPathDecoded());
+			if (cached != null) {
+				attrs = cached.getAttributes();
+			} else {
+				statSelf();
+			}
+		}
+	}
+
+	/**
+	 * Refresh this object, discarding any cached attributes so that the next
+	 * access goes back to the server.
+	 */
+	@Override
+	public void refresh() throws FileSystemException {
+		fs.getStatCache().invalidate(getName().getPathDecoded(), false);
+		super.refresh();
 	}
 
 	protected void doDetach() throws Exception {
@@ -287,8 +395,7 @@ public class SftpFileObject extends AbstractFileObject<SftpFileSystem> {
 	protected OutputStream doGetOutputStream(boolean bAppend) throws Exception {
 		final SftpClient sftp = fs.getClient();
 		try {
-			final OutputStream outputStream = sftp.getOutputStream(getName()
-					.getPathDecoded());
+			final OutputStream outputStream = openOutputStream(sftp, bAppend);
 			return new FilterOutputStream(outputStream) {
 				public void write(byte b[], int off, int len)
 						throws IOException {
@@ -323,6 +430,283 @@ public class SftpFileObject extends AbstractFileObject<SftpFileSystem> {
 
 	}
 
+	/**
+	 * Download this file to a local file, which is created or replaced. Large
+	 * files are split into segments which are read concurrently over several
+	 * channels.
+	 *
+	 * @param target local file
+	 * @throws FileSystemException on error
+	 */
+	public void download(File target) throws FileSystemException {
+		if (getType() != FileType.FILE) {
+			throw new FileSystemException("vfs.provider/read-not-file.error", this);
+		}
+		try {
+			createSegmentedTransfer().download(target, getContent().getSize());
+		} catch (IOException e) {
+			throw new FileSystemException("vfs.provider/copy-file.error", e, this, target);
+		}
+	}
+
+	/**
+	 * Copies local files using segmented uploads, and files on the same server
+	 * using the server's copy extensions when it has them. Anything else is
+	 * copied as normal.
+	 */
+	@Override
+	public void copyFrom(FileObject file, FileSelector selector)
+			throws FileSystemException {
+		final boolean local = "file".equals(file.getName().getScheme());
+		if (!local && !(isSameServer(file) && isServerCopySupported())) {
+			super.copyFrom(file, selector);
+			return;
+		}
+		if (!FileObjectUtils.exists(file)) {
+			throw new FileSystemException(
+					"vfs.provider/copy-missing-file.error", file);
+		}
+		final List<FileObject> files = new ArrayList<FileObject>();
+		file.findFiles(selector, false, files);
+		for (FileObject srcFile : files) {
+			final String relPath = file.getName().getRelativeName(
+					srcFile.getName());
+			final FileObject destFile = resolveFile(relPath,
+					NameScope.DESCENDENT_OR_SELF);
+			boolean exists = FileObjectUtils.exists(destFile);
+			if (exists && destFile.getType() != srcFile.getType()) {
+				destFile.deleteAll();
+				exists = false;
+			}
+			if (srcFile.getType().hasContent()) {
+				final SftpFileObject dest = (SftpFileObject) FileObjectUtils
+						.getAbstractFileObject(destFile);
+				try {
+					if (local) {
+						dest.createSegmentedTransfer().upload(
+								srcFile.getPath().toFile());
+					} else if (!dest.copyOnServer(srcFile.getName().getPathDecoded())) {
+						/* The server refused, so stream it instead */
+						dest.refresh();
+						srcFile.getContent().write(destFile);
+						continue;
+					}
+				} catch (IOException e) {
+					throw new FileSystemException(
+							"vfs.provider/copy-file.error", e, srcFile,
+							destFile);
+				}
+				/* The copy happened behind VFS's back, so update state and fire events */
+				try {
+					dest.refresh();
+					if (exists) {
+						dest.handleChanged();
+					} else {
+						dest.handleCreate(FileType.FILE);
+					}
+				} catch (Exception e) {
+					throw new FileSystemException(e);
+				}
+			} else if (srcFile.getType().hasChildren()) {
+				destFile.createFolder();
+			}
+		}
+	}
+
+	/**
+	 * Copy this file to another, on the server itself if the destination is
+	 * on the same server and the server has the <code>copy-file</code> or
+	 * <code>copy-data</code> extension, otherwise by streaming the content.
+	 *
+	 * @param destination destination
+	 * @throws FileSystemException on error
+	 */
+	public void copyTo(FileObject destination) throws FileSystemException {
+		destination.copyFrom(this, Selectors.SELECT_SELF);
+	}
+
+	/**
+	 * Get a hash of the content. The server computes it if it has the
+	 * <code>check-file</code> extension (or for MD5, the <code>md5-hash</code>
+	 * extension), otherwise the content is read to compute it.
+	 *
+	 * @param algorithm one of md5, sha1, sha256 or sha512
+	 * @return hex encoded hash
+	 * @throws FileSystemException on error
+	 */
+	public String getHash(String algorithm) throws FileSystemException {
+		final RemoteHash remoteHash;
+		try {
+			remoteHash = RemoteHash.valueOf(algorithm.toLowerCase(Locale.ROOT)
+					.replace("-", ""));
+		} catch (IllegalArgumentException e) {
+			throw new FileSystemException(String.format(
+					"Unsupported hash algorithm %s.", algorithm), e);
+		}
+		byte[] hash = null;
+		try {
+			final SftpClient sftp = fs.getClient();
+			try {
+				final SftpChannel channel = sftp.getSubsystemChannel();
+				if (channel.supportsExtension("check-file-name")) {
+					hash = sftp.getRemoteHash(getName().getPathDecoded(), 0, 0,
+							remoteHash);
+				} else if (remoteHash == RemoteHash.md5
+						&& channel.supportsExtension("md5-hash")) {
+					hash = sftp.getRemoteHash(getName().getPathDecoded(), 0, 0,
+							new byte[0]);
+				}
+			} catch (SftpStatusException e) {
+				// The server would not hash it, so do it here
+				if (Log.isDebugEnabled()) {
+					Log.debug("Server could not hash " + getName(), e);
+				}
+			} finally {
+				fs.putClient(sftp);
+			}
+			if (hash == null || hash.length == 0) {
+				hash = hashContent(remoteHash);
+			}
+		} catch (IOException | SshException e) {
+			throw new FileSystemException(
+					"vfs.provider.sftp/get-attributes.error", e, getName());
+		}
+		final StringBuilder bui = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			bui.append(Character.forDigit((b >> 4) & 0xf, 16));
+			bui.append(Character.forDigit(b & 0xf, 16));
+		}
+		return bui.toString();
+	}
+
+	private byte[] hashContent(RemoteHash remoteHash) throws IOException {
+		final MessageDigest digest;
+		try {
+			switch (remoteHash) {
+			case md5:
+				digest = MessageDigest.getInstance("MD5");
+				break;
+			case sha1:
+				digest = MessageDigest.getInstance("SHA-1");
+				break;
+			case sha256:
+				digest = MessageDigest.getInstance("SHA-256");
+				break;
+			default:
+				digest = MessageDigest.getInstance("SHA-512");
+				break;
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		try (InputStream in = getContent().getInputStream()) {
+			final byte[] buf = new byte[65536];
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				digest.update(buf, 0, read);
+			}
+		}
+		return digest.digest();
+	}
+
+	private boolean isSameServer(FileObject file) throws FileSystemException {
+		final FileObject src = FileObjectUtils.getAbstractFileObject(file);
+		return src instanceof SftpFileObject
+				&& src.getFileSystem().getRootName()
+						.equals(getFileSystem().getRootName());
+	}
+
+	private boolean isServerCopySupported() throws FileSystemException {
+		try {
+			final SftpClient sftp = fs.getClient();
+			try {
+				final SftpChannel channel = sftp.getSubsystemChannel();
+				return channel.supportsExtension("copy-file")
+						|| channel.supportsExtension("copy-data");
+			} finally {
+				fs.putClient(sftp);
+			}
+		} catch (IOException e) {
+			throw new FileSystemException(e);
+		}
+	}
+
+	/**
+	 * Replace this file with a copy of another made by the server, with a
+	 * single <code>copy-file</code> request if possible, otherwise a
+	 * <code>copy-data</code> request between two handles.
+	 *
+	 * @return <code>false</code> if the server would not make the copy, so
+	 *         the content must be streamed instead
+	 */
+	private boolean copyOnServer(String srcPath) throws IOException {
+		final SftpClient sftp = fs.getClient();
+		try {
+			final SftpChannel channel = sftp.getSubsystemChannel();
+			if (channel.supportsExtension("copy-file")) {
+				sftp.copyRemoteFile(srcPath, getName().getPathDecoded(), true);
+			} else {
+				try (SftpHandle src = sftp.openFile(srcPath,
+						SftpChannel.OPEN_READ);
+						SftpHandle dest = sftp.openFile(getName()
+								.getPathDecoded(), SftpChannel.OPEN_WRITE
+								| SftpChannel.OPEN_CREATE
+								| SftpChannel.OPEN_TRUNCATE)) {
+					/* A length of zero copies to the end of the file */
+					src.copyTo(dest, new UnsignedInteger64(0),
+							new UnsignedInteger64(0), new UnsignedInteger64(0));
+				}
+			}
+			return true;
+		} catch (SftpStatusException e) {
+			if (e.getStatus() != SftpStatusException.SSH_FX_PERMISSION_DENIED) {
+				/* Such as OP_UNSUPPORTED when the paths are on different mounts */
+				if (Log.isDebugEnabled()) {
+					Log.debug(String.format("Server refused to copy %s to %s.", srcPath,
+							getName().getPathDecoded()), e);
+				}
+				return false;
+			}
+			throw new IOException(e.getMessage(), e);
+		} catch (SshException e) {
+			throw new SshIOException(e);
+		} finally {
+			fs.putClient(sftp);
+		}
+	}
+
+	/**
+	 * Walk the tree below this folder, listing several folders at once and
+	 * passing each entry found to a consumer as it arrives.
+	 *
+	 * @param maxDepth maximum depth of entries, where children of this folder
+	 *            are at depth 1, or -1 for no limit
+	 * @param selector chooses entries and folders to walk, or
+	 *            <code>null</code> for everything
+	 * @param consumer receives entries
+	 * @throws FileSystemException on error
+	 */
+	public void walk(int maxDepth, SftpTreeWalker.Selector selector,
+			SftpTreeWalker.Consumer consumer) throws FileSystemException {
+		if (getType() != FileType.FOLDER) {
+			throw new FileSystemException(
+					"vfs.provider/list-children-not-folder.error", this);
+		}
+		new SftpTreeWalker(this, fs, SftpFileSystemConfigBuilder.getInstance()
+				.getWalkConcurrency(fs.getFileSystemOptions()), maxDepth,
+				selector, consumer).walk();
+	}
+
+	private SftpSegmentedTransfer createSegmentedTransfer() throws FileSystemException {
+		final SftpFileSystemConfigBuilder config = SftpFileSystemConfigBuilder
+				.getInstance();
+		final FileSystemOptions opts = fs.getFileSystemOptions();
+		return new SftpSegmentedTransfer(fs, getName().getPathDecoded(),
+				config.getSegmentSize(opts), config.getSegmentConcurrency(opts),
+				config.getTransferBlockSize(opts),
+				config.getTransferQueueDepth(opts), fs.getTransferExecutor());
+	}
+
 	protected boolean doIsHidden() throws Exception {
 		return getName().getBaseName().startsWith(".");
 	}
@@ -20,7 +20,8 @@ public class SftpFileProvider extends AbstractOriginatingFileProvider {
 	protected final static Collection<Capability> capabilities = Collections.unmodifiableCollection(Arrays.asList(new Capability[] {
 		Capability.CREATE, Capability.DELETE, Capability.RENAME, Capability.GET_TYPE, Capability.LIST_CHILDREN,
 		Capability.READ_CONTENT, Capability.URI, Capability.WRITE_CONTENT, Capability.GET_LAST_MODIFIED,
-		Capability.SET_LAST_MODIFIED_FILE, Capability.RANDOM_ACCESS_READ }));
+		Capability.SET_LAST_MODIFIED_FILE, Capability.RANDOM_ACCESS_READ,
+		Capability.RANDOM_ACCESS_WRITE, Capability.RANDOM_ACCESS_SET_LENGTH }));
 
 	public SftpFileProvider() {
 		super();
@@ -43,6 +44,16 @@ public class SftpFileProvider extends AbstractOriginatingFileProvider {
 			}
 			return new SftpFileSystem(rootName, ssh, fileSystemOptions) {
 
+				@Override
+				protected SshConnection createConnection() throws FileSystemException {
+					try {
+						return SftpClientFactory.createConnection(rootName.getHostName(), rootName.getPort(),
+								rootName.getUserName(), rootName.getPassword(), fileSystemOptions);
+					} catch (final Exception e) {
+						throw new FileSystemException("vfs.provider.sftp/connect.error", rootName, e);
+					}
+				}
+
 				@Override
 				protected void doCloseCommunicationLink() {
 					super.doCloseCommunicationLink();
@@ -2,6 +2,12 @@ package com.sshtools.vfs.sftp;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.vfs2.Capability;
 import org.apache.commons.vfs2.FileObject;
@@ -12,69 +18,110 @@ import org.apache.commons.vfs2.provider.AbstractFileSystem;
 import org.apache.commons.vfs2.provider.GenericFileName;
 
 import com.sshtools.client.sftp.SftpClient;
-import com.sshtools.common.logger.Log;
 import com.sshtools.common.ssh.SshConnection;
 
 public class SftpFileSystem extends AbstractFileSystem {
 
 	private SshConnection ssh;
-	private SftpClient sftp;
+	private final SftpClientPool pool;
+	private final SftpStatCache statCache;
 
-	private String home;
+	private volatile String home;
+	private ExecutorService transferExecutor;
 
 	protected SftpFileSystem(final GenericFileName rootName, final SshConnection ssh, final FileSystemOptions fileSystemOptions) {
 		super(rootName, null, fileSystemOptions);
 		this.ssh = ssh;
+		SftpFileSystemConfigBuilder config = SftpFileSystemConfigBuilder.getInstance();
+		this.pool = new SftpClientPool(ssh, config.getPoolConnections(fileSystemOptions) > 1 ? new SftpClientPool.ConnectionFactory() {
+			@Override
+			public SshConnection createConnection() throws FileSystemException {
+				return SftpFileSystem.this.createConnection();
+			}
+		} : null, config.getPoolMaxSize(fileSystemOptions), config.getPoolMinIdle(fileSystemOptions),
+				config.getPoolMaxIdle(fileSystemOptions), config.getPoolIdleTimeout(fileSystemOptions),
+				config.getPoolWaitTimeout(fileSystemOptions), config.getPoolConnections(fileSystemOptions));
+		this.statCache = new SftpStatCache(config.getStatCacheTtl(fileSystemOptions),
+				config.getStatCacheSize(fileSystemOptions));
 	}
 
 	protected void doCloseCommunicationLink() {
-		try {
-			if (sftp != null) {
-				sftp.quit();
-				sftp = null;
-			}
-		} catch (Exception ex) {
-			if(Log.isDebugEnabled()) {
-				Log.debug("Failed to close communication link.", ex);
+		synchronized (this) {
+			if (transferExecutor != null) {
+				transferExecutor.shutdownNow();
+				transferExecutor = null;
 			}
 		}
+		/* The file system may be used again after this, so the pool stays usable */
+		pool.closeIdle();
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		pool.close();
+	}
+
+	/**
+	 * Get the executor on which segments of files are transferred. There are as
+	 * many threads as there may be channels.
+	 *
+	 * @return executor
+	 */
+	protected synchronized ExecutorService getTransferExecutor() {
+		if (transferExecutor == null) {
+			int threads = Math.max(1, SftpFileSystemConfigBuilder.getInstance().getPoolMaxSize(getFileSystemOptions()));
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("SftpTransfer"));
+			executor.allowCoreThreadTimeOut(true);
+			transferExecutor = executor;
+		}
+		return transferExecutor;
 	}
 
-	protected synchronized SftpClient getClient() throws IOException {
+	/**
+	 * Get an SFTP client from the pool of channels. It must be returned using
+	 * {@link #putClient(SftpClient)} when finished with.
+	 *
+	 * @return client
+	 * @throws IOException if no client could be had
+	 */
+	protected SftpClient getClient() throws IOException {
 		try {
-			/*
-			 * We always maintain at least one sftp client all the while the
-			 * connection is opened. If the client is in use (i.e. it hasn't be
-			 * release by calling the putClient() method), then a new one is
-			 * created.
-			 */
-			final SftpClient sftp;
-			if (this.sftp != null && !this.sftp.isClosed()) {
-				sftp = this.sftp;
-				this.sftp = null;
-			} else {
-				sftp = new SftpClient(ssh);
+			final SftpClient sftp = pool.take();
+			if (home == null) {
 				home = sftp.pwd();
 			}
 			return sftp;
+		} catch (final FileSystemException e) {
+			throw e;
 		} catch (final Exception e) {
 			throw new FileSystemException("vfs.provider.sftp/connect.error", getRootName(), e);
 		}
 	}
 	
+	SftpStatCache getStatCache() {
+		return statCache;
+	}
+
 	protected SshConnection getSsh() {
 		return ssh;
 	}
 
+	/**
+	 * Create a further SSH connection to the same server, used when the pool
+	 * is allowed to spread channels over more than one connection. By default
+	 * this is not possible, as the file system was given its connection.
+	 *
+	 * @return connection, or <code>null</code> if no more may be made
+	 * @throws FileSystemException if a connection cannot be made
+	 */
+	protected SshConnection createConnection() throws FileSystemException {
+		return null;
+	}
+
 	protected void putClient(final SftpClient sftp) {
-		if (this.sftp == null) {
-			this.sftp = sftp;
-		} else {
-			try {
-				sftp.quit();
-			} catch (Exception e) {
-			}
-		}
+		pool.release(sftp);
 	}
 
 	protected void addCapabilities(final Collection<Capability> caps) {
@@ -92,4 +139,20 @@ public class SftpFileSystem extends AbstractFileSystem {
 	public String getHome() {
 		return home;
 	}
+
+	static class DaemonThreadFactory implements ThreadFactory {
+		private final AtomicInteger counter = new AtomicInteger();
+		private final String prefix;
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
 }
@@ -83,6 +83,221 @@ public class SftpFileSystemConfigBuilder extends DefaultFileSystemConfigBuilder
     	setParam(opts, "passphrase", passphrase);
     }
     
+    /**
+     * Set the maximum number of SFTP channels the file system will have open
+     * at once. When all are in use, further operations wait for one to be
+     * returned.
+     *
+     * @param opts options
+     * @param poolMaxSize maximum channels
+     */
+    public void setPoolMaxSize(FileSystemOptions opts, int poolMaxSize) {
+        setParam(opts, "poolMaxSize", poolMaxSize);
+    }
+
+    public int getPoolMaxSize(FileSystemOptions opts) {
+        return getInteger(opts, "poolMaxSize", 8);
+    }
+
+    /**
+     * Set the number of idle SFTP channels that are kept open however long
+     * they have been idle.
+     *
+     * @param opts options
+     * @param poolMinIdle minimum idle channels
+     */
+    public void setPoolMinIdle(FileSystemOptions opts, int poolMinIdle) {
+        setParam(opts, "poolMinIdle", poolMinIdle);
+    }
+
+    public int getPoolMinIdle(FileSystemOptions opts) {
+        return getInteger(opts, "poolMinIdle", 1);
+    }
+
+    /**
+     * Set the maximum number of idle SFTP channels kept for reuse. Channels
+     * returned beyond this are closed.
+     *
+     * @param opts options
+     * @param poolMaxIdle maximum idle channels
+     */
+    public void setPoolMaxIdle(FileSystemOptions opts, int poolMaxIdle) {
+        setParam(opts, "poolMaxIdle", poolMaxIdle);
+    }
+
+    public int getPoolMaxIdle(FileSystemOptions opts) {
+        return getInteger(opts, "poolMaxIdle", 4);
+    }
+
+    /**
+     * Set how long (in milliseconds) an SFTP channel beyond the minimum may be
+     * idle before it is closed.
+     *
+     * @param opts options
+     * @param poolIdleTimeout idle timeout
+     */
+    public void setPoolIdleTimeout(FileSystemOptions opts, long poolIdleTimeout) {
+        setParam(opts, "poolIdleTimeout", poolIdleTimeout);
+    }
+
+    public long getPoolIdleTimeout(FileSystemOptions opts) {
+        return getLong(opts, "poolIdleTimeout", 60000L);
+    }
+
+    /**
+     * Set how long (in milliseconds) to wait for an SFTP channel when all are
+     * in use.
+     *
+     * @param opts options
+     * @param poolWaitTimeout wait timeout
+     */
+    public void setPoolWaitTimeout(FileSystemOptions opts, long poolWaitTimeout) {
+        setParam(opts, "poolWaitTimeout", poolWaitTimeout);
+    }
+
+    public long getPoolWaitTimeout(FileSystemOptions opts) {
+        return getLong(opts, "poolWaitTimeout", 30000L);
+    }
+
+    /**
+     * Set the maximum number of SSH connections the SFTP channels may be
+     * spread over, for servers that limit the channels per connection. Only
+     * used when the file system made its own connection.
+     *
+     * @param opts options
+     * @param poolConnections maximum connections
+     */
+    public void setPoolConnections(FileSystemOptions opts, int poolConnections) {
+        setParam(opts, "poolConnections", poolConnections);
+    }
+
+    public int getPoolConnections(FileSystemOptions opts) {
+        return getInteger(opts, "poolConnections", 1);
+    }
+
+    /**
+     * Set whether file content is transferred with several read or write
+     * requests outstanding at once, rather than waiting for each to be
+     * answered before sending the next.
+     *
+     * @param opts options
+     * @param pipelinedTransfers pipelined transfers
+     */
+    public void setPipelinedTransfers(FileSystemOptions opts, boolean pipelinedTransfers) {
+        setParam(opts, "pipelinedTransfers", pipelinedTransfers);
+    }
+
+    public boolean isPipelinedTransfers(FileSystemOptions opts) {
+        return getBoolean(opts, "pipelinedTransfers", true);
+    }
+
+    /**
+     * Set the number of bytes asked for by each read or write request of a
+     * pipelined transfer.
+     *
+     * @param opts options
+     * @param transferBlockSize block size
+     */
+    public void setTransferBlockSize(FileSystemOptions opts, int transferBlockSize) {
+        setParam(opts, "transferBlockSize", transferBlockSize);
+    }
+
+    public int getTransferBlockSize(FileSystemOptions opts) {
+        return getInteger(opts, "transferBlockSize", 32768);
+    }
+
+    /**
+     * Set the maximum number of read or write requests a pipelined transfer
+     * has outstanding at once. Together with the block size, this is how much
+     * data may be in flight, which should be at least the bandwidth delay
+     * product of the link to fill it.
+     *
+     * @param opts options
+     * @param transferQueueDepth queue depth
+     */
+    public void setTransferQueueDepth(FileSystemOptions opts, int transferQueueDepth) {
+        setParam(opts, "transferQueueDepth", transferQueueDepth);
+    }
+
+    public int getTransferQueueDepth(FileSystemOptions opts) {
+        return getInteger(opts, "transferQueueDepth", 32);
+    }
+
+    /**
+     * Set the size of the segments a large file is split into, when it is
+     * transferred over several channels at once.
+     *
+     * @param opts options
+     * @param segmentSize segment size
+     */
+    public void setSegmentSize(FileSystemOptions opts, long segmentSize) {
+        setParam(opts, "segmentSize", segmentSize);
+    }
+
+    public long getSegmentSize(FileSystemOptions opts) {
+        return getLong(opts, "segmentSize", 16L * 1024 * 1024);
+    }
+
+    /**
+     * Set the maximum number of segments of one file that are transferred at
+     * once, each using its own channel from the pool.
+     *
+     * @param opts options
+     * @param segmentConcurrency segment concurrency
+     */
+    public void setSegmentConcurrency(FileSystemOptions opts, int segmentConcurrency) {
+        setParam(opts, "segmentConcurrency", segmentConcurrency);
+    }
+
+    public int getSegmentConcurrency(FileSystemOptions opts) {
+        return getInteger(opts, "segmentConcurrency", 4);
+    }
+
+    /**
+     * Set the maximum number of folders listed at once when walking a tree,
+     * each using its own channel from the pool.
+     *
+     * @param opts options
+     * @param walkConcurrency walk concurrency
+     */
+    public void setWalkConcurrency(FileSystemOptions opts, int walkConcurrency) {
+        setParam(opts, "walkConcurrency", walkConcurrency);
+    }
+
+    public int getWalkConcurrency(FileSystemOptions opts) {
+        return getInteger(opts, "walkConcurrency", 4);
+    }
+
+    /**
+     * Set how long (in milliseconds) the attributes of a path are cached, so
+     * that attaching the same file again soon after does not need another
+     * stat. Zero disables the cache.
+     *
+     * @param opts options
+     * @param statCacheTtl time to live
+     */
+    public void setStatCacheTtl(FileSystemOptions opts, long statCacheTtl) {
+        setParam(opts, "statCacheTtl", statCacheTtl);
+    }
+
+    public long getStatCacheTtl(FileSystemOptions opts) {
+        return getLong(opts, "statCacheTtl", 5000L);
+    }
+
+    /**
+     * Set the maximum number of paths whose attributes are cached.
+     *
+     * @param opts options
+     * @param statCacheSize cache size
+     */
+    public void setStatCacheSize(FileSystemOptions opts, int statCacheSize) {
+        setParam(opts, "statCacheSize", statCacheSize);
+    }
+
+    public int getStatCacheSize(FileSystemOptions opts) {
+        return getInteger(opts, "statCacheSize", 10000);
+    }
+
     protected Class<SftpFileSystem> getConfigClass() {
         return SftpFileSystem.class;
     }
@@ -0,0 +1,179 @@
+package com.sshtools.vfs.sftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.sshtools.client.sftp.SftpChannel;
+import com.sshtools.client.sftp.SftpHandle;
+import com.sshtools.client.sftp.SftpMessage;
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.sftp.SftpStatusException;
+import com.sshtools.common.ssh.SshException;
+import com.sshtools.common.ssh.SshIOException;
+import com.sshtools.common.util.UnsignedInteger32;
+
+/**
+ * Reads a file keeping a number of read requests outstanding, so the server
+ * is streaming the following blocks while the current one is being consumed
+ * rather than waiting a full round trip for each block. Replies may arrive in
+ * any order, but are consumed in file order.
+ * <p>
+ * A server may return less than was asked for without being at the end of
+ * the file, in which case the remainder of that block is requested again.
+ * Reading may be limited to a range of the file.
+ */
+class SftpPipelinedInputStream extends InputStream {
+
+	private final SftpHandle handle;
+	private final SftpChannel channel;
+	private final int blockSize;
+	private final int maxRequests;
+	private final Deque<ReadRequest> requests = new ArrayDeque<>();
+	private final long end;
+	private long nextOffset;
+	private byte[] buffer;
+	private int bufferPos;
+	private boolean eof;
+	private boolean closed;
+
+	SftpPipelinedInputStream(SftpChannel channel, SftpHandle handle, long position, int blockSize, int maxRequests) {
+		this(channel, handle, position, Long.MAX_VALUE, blockSize, maxRequests);
+	}
+
+	SftpPipelinedInputStream(SftpChannel channel, SftpHandle handle, long position, long end, int blockSize,
+			int maxRequests) {
+		this.handle = handle;
+		this.end = end;
+		this.channel = channel;
+		this.blockSize = Math.max(1, blockSize);
+		this.maxRequests = Math.max(1, maxRequests);
+		this.nextOffset = position;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream is closed.");
+		}
+		if (len == 0) {
+			return 0;
+		}
+		while (buffer == null || bufferPos == buffer.length) {
+			if (!nextBlock()) {
+				return -1;
+			}
+		}
+		int count = Math.min(len, buffer.length - bufferPos);
+		System.arraycopy(buffer, bufferPos, b, off, count);
+		bufferPos += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return buffer == null ? 0 : buffer.length - bufferPos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			buffer = null;
+			try {
+				drain();
+			} finally {
+				handle.close();
+			}
+		}
+	}
+
+	private boolean nextBlock() throws IOException {
+		buffer = null;
+		bufferPos = 0;
+		try {
+			fill();
+			ReadRequest request = requests.pollFirst();
+			if (request == null) {
+				return false;
+			}
+			SftpMessage msg = channel.getResponse(request.id);
+			try {
+				if (msg.getType() == SftpChannel.SSH_FXP_DATA) {
+					byte[] data = msg.readBinaryString();
+					if (data.length < request.length) {
+						/* Short read, ask again for the rest of the block */
+						requests.addFirst(post(request.offset + data.length, request.length - data.length));
+					}
+					buffer = data;
+					return true;
+				} else if (msg.getType() == SftpChannel.SSH_FXP_STATUS) {
+					int status = (int) msg.readInt();
+					if (status == SftpStatusException.SSH_FX_EOF) {
+						eof = true;
+						drain();
+						return false;
+					}
+					throw new SftpStatusException(status, msg.readString());
+				} else {
+					throw new SshException(String.format("Unexpected response %d to read request.", msg.getType()),
+							SshException.CHANNEL_FAILURE);
+				}
+			} finally {
+				msg.release();
+			}
+		} catch (SftpStatusException e) {
+			throw new IOException(e.getMessage(), e);
+		} catch (SshException e) {
+			throw new SshIOException(e);
+		}
+	}
+
+	private void fill() throws SftpStatusException, SshException {
+		while (!eof && nextOffset < end && requests.size() < maxRequests) {
+			int length = (int) Math.min(blockSize, end - nextOffset);
+			requests.addLast(post(nextOffset, length));
+			nextOffset += length;
+		}
+	}
+
+	private ReadRequest post(long offset, int length) throws SftpStatusException, SshException {
+		return new ReadRequest(handle.postReadRequest(offset, length), offset, length);
+	}
+
+	/**
+	 * Collect the replies to requests that are no longer wanted, so they are
+	 * not left waiting in the channel.
+	 */
+	private void drain() {
+		ReadRequest request;
+		while ((request = requests.pollFirst()) != null) {
+			try {
+				channel.getResponse(request.id).release();
+			} catch (Exception e) {
+				if (Log.isDebugEnabled()) {
+					Log.debug("Failed to collect outstanding read response.", e);
+				}
+			}
+		}
+	}
+
+	private static class ReadRequest {
+		private final UnsignedInteger32 id;
+		private final long offset;
+		private final int length;
+
+		ReadRequest(UnsignedInteger32 id, long offset, int length) {
+			this.id = id;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.sshtools.vfs.sftp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.sshtools.client.sftp.SftpChannel;
+import com.sshtools.client.sftp.SftpHandle;
+import com.sshtools.common.sftp.SftpStatusException;
+import com.sshtools.common.ssh.SshException;
+import com.sshtools.common.ssh.SshIOException;
+import com.sshtools.common.util.UnsignedInteger32;
+
+/**
+ * Writes a file in blocks, keeping a number of write requests outstanding
+ * rather than waiting a full round trip for each to be acknowledged. Once the
+ * limit is reached, the oldest request must be acknowledged before another
+ * block is sent. Any failure is reported by the next write, or at the latest
+ * by {@link #flush()} or {@link #close()}.
+ */
+class SftpPipelinedOutputStream extends OutputStream {
+
+	private final SftpHandle handle;
+	private final SftpChannel channel;
+	private final int maxRequests;
+	private final Deque<UnsignedInteger32> requests = new ArrayDeque<>();
+	private final byte[] buffer;
+	private int count;
+	private long position;
+	private boolean closed;
+
+	SftpPipelinedOutputStream(SftpChannel channel, SftpHandle handle, long position, int blockSize, int maxRequests) {
+		this.handle = handle;
+		this.channel = channel;
+		this.maxRequests = Math.max(1, maxRequests);
+		this.buffer = new byte[Math.max(1, blockSize)];
+		this.position = position;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream is closed.");
+		}
+		while (len > 0) {
+			if (count == 0 && len >= buffer.length) {
+				/* Send whole blocks straight from the caller's array */
+				send(b, off, buffer.length);
+				off += buffer.length;
+				len -= buffer.length;
+			} else {
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if (count == buffer.length) {
+					send(buffer, 0, count);
+					count = 0;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (closed) {
+			return;
+		}
+		if (count > 0) {
+			send(buffer, 0, count);
+			count = 0;
+		}
+		awaitAll();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			try {
+				flush();
+			} finally {
+				closed = true;
+				try {
+					awaitAll();
+				} finally {
+					handle.close();
+				}
+			}
+		}
+	}
+
+	private void send(byte[] b, int off, int len) throws IOException {
+		try {
+			while (requests.size() >= maxRequests) {
+				channel.getOKRequestStatus(requests.pollFirst());
+			}
+			requests.addLast(handle.postWriteRequest(position, b, off, len));
+			position += len;
+		} catch (SftpStatusException e) {
+			throw new IOException(e.getMessage(), e);
+		} catch (SshException e) {
+			throw new SshIOException(e);
+		}
+	}
+
+	private void awaitAll() throws IOException {
+		IOException error = null;
+		UnsignedInteger32 id;
+		while ((id = requests.pollFirst()) != null) {
+			try {
+				channel.getOKRequestStatus(id);
+			} catch (SftpStatusException e) {
+				if (error == null) {
+					error = new IOException(e.getMessage(), e);
+				}
+			} catch (SshException e) {
+				if (error == null) {
+					error = new SshIOException(e);
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+}
@@ -1,25 +1,125 @@
 package com.sshtools.vfs.sftp;
 
 import java.io.DataInputStream;
-import java.io.FilterInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.vfs2.FileSystemException;
 import org.apache.commons.vfs2.provider.AbstractRandomAccessContent;
 import org.apache.commons.vfs2.util.RandomAccessMode;
 
+import com.sshtools.client.sftp.SftpChannel;
+import com.sshtools.client.sftp.SftpClient;
+import com.sshtools.client.sftp.SftpHandle;
+import com.sshtools.common.sftp.SftpFileAttributes;
+import com.sshtools.common.sftp.SftpStatusException;
+import com.sshtools.common.ssh.SshException;
+import com.sshtools.common.ssh.SshIOException;
+import com.sshtools.common.util.UnsignedInteger32;
+import com.sshtools.common.util.UnsignedInteger64;
+
+/**
+ * Random access over a single open file handle, using reads and writes at an
+ * offset so that seeking costs nothing. Content is read a block at a time
+ * into a small cache of the most recently used blocks. Writes go into the
+ * cached blocks, and are sent when a block is evicted, or all at once when
+ * the content is closed or its length is changed.
+ */
 class SftpRandomAccessContent extends AbstractRandomAccessContent {
+
+	/** The number of blocks cached */
+	static final int CACHE_BLOCKS = 16;
+
 	private final SftpFileObject fileObject;
+	private final SftpFileSystem fs;
+	private final RandomAccessMode mode;
+	private final SftpClient sftp;
+	private final SftpChannel channel;
+	private final SftpHandle handle;
+	private final int blockSize;
+	private final Map<Long, Block> blocks = new LinkedHashMap<Long, Block>(16, 0.75f, true);
+	private final DataInputStream dis;
+	private final DataOutputStream dos;
 
 	protected long filePointer = 0;
-	private DataInputStream dis = null;
-	private InputStream mis = null;
+	private long length;
+	private boolean closed;
 
-	SftpRandomAccessContent(final SftpFileObject fileObject, RandomAccessMode mode) {
+	SftpRandomAccessContent(final SftpFileObject fileObject, final SftpFileSystem fs, RandomAccessMode mode)
+			throws IOException {
 		super(mode);
 
 		this.fileObject = fileObject;
+		this.fs = fs;
+		this.mode = mode;
+		this.blockSize = Math.max(1,
+				SftpFileSystemConfigBuilder.getInstance().getTransferBlockSize(fs.getFileSystemOptions()));
+
+		sftp = fs.getClient();
+		try {
+			channel = sftp.getSubsystemChannel();
+			handle = sftp.openFile(fileObject.getName().getPathDecoded(), mode.requestWrite()
+					? SftpChannel.OPEN_READ | SftpChannel.OPEN_WRITE | SftpChannel.OPEN_CREATE
+					: SftpChannel.OPEN_READ);
+			try {
+				length = handle.getAttributes().getSize().longValue();
+			} catch (SftpStatusException | SshException e) {
+				handle.close();
+				throw e;
+			}
+		} catch (SftpStatusException | SshException e) {
+			fs.putClient(sftp);
+			throw toIOException(e);
+		}
+
+		dis = new DataInputStream(new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return SftpRandomAccessContent.this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return SftpRandomAccessContent.this.read(b, off, len);
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = Math.max(0, Math.min(n, length - filePointer));
+				filePointer += skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return (int) Math.max(0, Math.min(Integer.MAX_VALUE, length - filePointer));
+			}
+
+			@Override
+			public void close() throws IOException {
+				SftpRandomAccessContent.this.close();
+			}
+		});
+		dos = new DataOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				SftpRandomAccessContent.this.write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				SftpRandomAccessContent.this.write(b, off, len);
+			}
+		});
 	}
 
 	public long getFilePointer() throws IOException {
@@ -27,161 +127,327 @@ class SftpRandomAccessContent extends AbstractRandomAccessContent {
 	}
 
 	public void seek(long pos) throws IOException {
-		if (pos == filePointer) {
-			return;
-		}
-
 		if (pos < 0) {
 			throw new FileSystemException("vfs.provider/random-access-invalid-position.error", new Object[] { Long.valueOf(pos) });
 		}
-		if (dis != null) {
-			close();
-		}
-
 		filePointer = pos;
 	}
 
-	private void createStream() throws IOException {
-		if (dis != null) {
+	public void close() throws IOException {
+		if (closed) {
 			return;
 		}
-
-		mis = fileObject.getInputStream(filePointer);
-		dis = new DataInputStream(new FilterInputStream(mis) {
-			public int read() throws IOException {
-				int ret = super.read();
-				if (ret > -1) {
-					filePointer++;
+		closed = true;
+		try {
+			flushBlocks(blocks.values());
+		} finally {
+			blocks.clear();
+			try {
+				handle.close();
+			} finally {
+				fs.putClient(sftp);
+				if (mode.requestWrite()) {
+					/* It may have been created, as well as changed */
+					fileObject.refresh();
 				}
-				return ret;
 			}
+		}
+	}
 
-			public int read(byte b[]) throws IOException {
-				int ret = super.read(b);
-				if (ret > -1) {
-					filePointer += ret;
-				}
-				return ret;
-			}
+	public long length() throws IOException {
+		return length;
+	}
 
-			public int read(byte b[], int off, int len) throws IOException {
-				int ret = super.read(b, off, len);
-				if (ret > -1) {
-					filePointer += ret;
-				}
-				return ret;
-			}
+	public int read(byte b[], int off, int len) throws IOException {
+		checkOpen();
+		if (len == 0) {
+			return 0;
+		}
+		if (filePointer >= length) {
+			return -1;
+		}
+		Block block = getBlock(filePointer / blockSize);
+		int offsetInBlock = (int) (filePointer - block.start);
+		int count = Math.min(len, block.valid - offsetInBlock);
+		if (count <= 0) {
+			/* File is shorter than we thought */
+			return -1;
+		}
+		System.arraycopy(block.data, offsetInBlock, b, off, count);
+		filePointer += count;
+		return count;
+	}
 
-			public void close() throws IOException {
-				SftpRandomAccessContent.this.close();
-			}
-		});
+	public void write(byte b[], int off, int len) throws IOException {
+		checkOpen();
+		if (!mode.requestWrite()) {
+			throw new FileSystemException("vfs.provider/random-access-write.error");
+		}
+		while (len > 0) {
+			Block block = getBlock(filePointer / blockSize);
+			int offsetInBlock = (int) (filePointer - block.start);
+			int count = Math.min(len, blockSize - offsetInBlock);
+			System.arraycopy(b, off, block.data, offsetInBlock, count);
+			block.markDirty(offsetInBlock, offsetInBlock + count);
+			off += count;
+			len -= count;
+			filePointer += count;
+			length = Math.max(length, filePointer);
+		}
 	}
 
-	public void close() throws IOException {
-		if (dis != null) {
-			mis.close();
+	public void write(byte b[]) throws IOException {
+		write(b, 0, b.length);
+	}
 
-			// this is to avoid recursive close
-			DataInputStream oldDis = dis;
-			dis = null;
-			oldDis.close();
-			mis = null;
-		}
+	public void write(int b) throws IOException {
+		dos.write(b);
 	}
 
-	public long length() throws IOException {
-		return fileObject.getContent().getSize();
+	public void writeBoolean(boolean v) throws IOException {
+		dos.writeBoolean(v);
+	}
+
+	public void writeByte(int v) throws IOException {
+		dos.writeByte(v);
+	}
+
+	public void writeShort(int v) throws IOException {
+		dos.writeShort(v);
+	}
+
+	public void writeChar(int v) throws IOException {
+		dos.writeChar(v);
+	}
+
+	public void writeInt(int v) throws IOException {
+		dos.writeInt(v);
+	}
+
+	public void writeLong(long v) throws IOException {
+		dos.writeLong(v);
+	}
+
+	public void writeFloat(float v) throws IOException {
+		dos.writeFloat(v);
+	}
+
+	public void writeDouble(double v) throws IOException {
+		dos.writeDouble(v);
+	}
+
+	public void writeBytes(String s) throws IOException {
+		dos.writeBytes(s);
+	}
+
+	public void writeChars(String s) throws IOException {
+		dos.writeChars(s);
+	}
+
+	public void writeUTF(String str) throws IOException {
+		dos.writeUTF(str);
 	}
 
 	public byte readByte() throws IOException {
-		createStream();
-		byte data = dis.readByte();
-		return data;
+		return dis.readByte();
 	}
 
 	public char readChar() throws IOException {
-		createStream();
-		char data = dis.readChar();
-		return data;
+		return dis.readChar();
 	}
 
 	public double readDouble() throws IOException {
-		createStream();
-		double data = dis.readDouble();
-		return data;
+		return dis.readDouble();
 	}
 
 	public float readFloat() throws IOException {
-		createStream();
-		float data = dis.readFloat();
-		return data;
+		return dis.readFloat();
 	}
 
 	public int readInt() throws IOException {
-		createStream();
-		int data = dis.readInt();
-		return data;
+		return dis.readInt();
 	}
 
 	public int readUnsignedByte() throws IOException {
-		createStream();
-		int data = dis.readUnsignedByte();
-		return data;
+		return dis.readUnsignedByte();
 	}
 
 	public int readUnsignedShort() throws IOException {
-		createStream();
-		int data = dis.readUnsignedShort();
-		return data;
+		return dis.readUnsignedShort();
 	}
 
 	public long readLong() throws IOException {
-		createStream();
-		long data = dis.readLong();
-		return data;
+		return dis.readLong();
 	}
 
 	public short readShort() throws IOException {
-		createStream();
-		short data = dis.readShort();
-		return data;
+		return dis.readShort();
 	}
 
 	public boolean readBoolean() throws IOException {
-		createStream();
-		boolean data = dis.readBoolean();
-		return data;
+		return dis.readBoolean();
 	}
 
 	public int skipBytes(int n) throws IOException {
-		createStream();
-		int data = dis.skipBytes(n);
-		return data;
+		return dis.skipBytes(n);
 	}
 
 	public void readFully(byte b[]) throws IOException {
-		createStream();
 		dis.readFully(b);
 	}
 
 	public void readFully(byte b[], int off, int len) throws IOException {
-		createStream();
 		dis.readFully(b, off, len);
 	}
 
 	public String readUTF() throws IOException {
-		createStream();
-		String data = dis.readUTF();
-		return data;
+		return dis.readUTF();
 	}
 
 	public InputStream getInputStream() throws IOException {
-		createStream();
 		return dis;
 	}
 
 	public void setLength(long newLength) throws IOException {
-		throw new UnsupportedOperationException();
+		checkOpen();
+		if (!mode.requestWrite()) {
+			throw new FileSystemException("vfs.provider/random-access-write.error");
+		}
+		flushBlocks(blocks.values());
+		try {
+			SftpFileAttributes attrs = new SftpFileAttributes(SftpFileAttributes.SSH_FILEXFER_TYPE_REGULAR,
+					channel.getCharsetEncoding());
+			attrs.setSize(new UnsignedInteger64(newLength));
+			handle.setAttributes(attrs);
+		} catch (SftpStatusException | SshException e) {
+			throw toIOException(e);
+		}
+		for (Iterator<Block> it = blocks.values().iterator(); it.hasNext();) {
+			Block block = it.next();
+			if (block.start >= newLength) {
+				it.remove();
+			} else if (block.start + block.valid > newLength) {
+				/* Anything later extending the file again must read back as zeros */
+				int valid = (int) (newLength - block.start);
+				Arrays.fill(block.data, valid, block.valid, (byte) 0);
+				block.valid = valid;
+			}
+		}
+		length = newLength;
+		filePointer = Math.min(filePointer, newLength);
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new FileSystemException("vfs.provider/closed.error");
+		}
+	}
+
+	private Block getBlock(long index) throws IOException {
+		Block block = blocks.get(index);
+		if (block == null) {
+			block = new Block(index * blockSize, new byte[blockSize]);
+			if (block.start < length) {
+				load(block);
+			}
+			blocks.put(index, block);
+			if (blocks.size() > CACHE_BLOCKS) {
+				evict();
+			}
+		}
+		return block;
+	}
+
+	private void load(Block block) throws IOException {
+		try {
+			int want = (int) Math.min(blockSize, length - block.start);
+			while (block.valid < want) {
+				int read = handle.read(block.start + block.valid, block.data, block.valid, want - block.valid);
+				if (read == -1) {
+					break;
+				}
+				block.valid += read;
+			}
+		} catch (SftpStatusException | SshException e) {
+			throw toIOException(e);
+		}
+	}
+
+	private void evict() throws IOException {
+		Iterator<Block> it = blocks.values().iterator();
+		Block eldest = it.next();
+		it.remove();
+		if (eldest.isDirty()) {
+			List<Block> dirty = new ArrayList<Block>(1);
+			dirty.add(eldest);
+			flushBlocks(dirty);
+		}
+	}
+
+	/**
+	 * Send the changed parts of blocks, with all the writes outstanding at
+	 * once.
+	 */
+	private void flushBlocks(Iterable<Block> toFlush) throws IOException {
+		List<UnsignedInteger32> requests = new ArrayList<UnsignedInteger32>();
+		IOException error = null;
+		try {
+			for (Block block : toFlush) {
+				if (block.isDirty()) {
+					requests.add(handle.postWriteRequest(block.start + block.dirtyStart, block.data,
+							block.dirtyStart, block.dirtyEnd - block.dirtyStart));
+					block.clean();
+				}
+			}
+		} catch (SftpStatusException | SshException e) {
+			error = toIOException(e);
+		}
+		for (UnsignedInteger32 id : requests) {
+			try {
+				channel.getOKRequestStatus(id);
+			} catch (SftpStatusException | SshException e) {
+				if (error == null) {
+					error = toIOException(e);
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private static IOException toIOException(Exception e) {
+		if (e instanceof SshException) {
+			return new SshIOException((SshException) e);
+		}
+		return new IOException(e.getMessage(), e);
+	}
+
+	private static class Block {
+		private final long start;
+		private final byte[] data;
+		private int valid;
+		private int dirtyStart = Integer.MAX_VALUE;
+		private int dirtyEnd;
+
+		Block(long start, byte[] data) {
+			this.start = start;
+			this.data = data;
+		}
+
+		void markDirty(int from, int to) {
+			dirtyStart = Math.min(dirtyStart, from);
+			dirtyEnd = Math.max(dirtyEnd, to);
+			valid = Math.max(valid, to);
+		}
+
+		boolean isDirty() {
+			return dirtyEnd > dirtyStart;
+		}
+
+		void clean() {
+			dirtyStart = Integer.MAX_VALUE;
+			dirtyEnd = 0;
+		}
 	}
 }
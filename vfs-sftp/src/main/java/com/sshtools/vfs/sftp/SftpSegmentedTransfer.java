@@ -0,0 +1,267 @@
+package com.sshtools.vfs.sftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sshtools.client.sftp.SftpChannel;
+import com.sshtools.client.sftp.SftpClient;
+import com.sshtools.client.sftp.SftpHandle;
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.sftp.SftpStatusException;
+import com.sshtools.common.ssh.SshException;
+import com.sshtools.common.ssh.SshIOException;
+
+/**
+ * Transfers a single file between the local file system and the server as a
+ * number of segments, each read or written by its own pipelined request
+ * stream, with several segments in progress at once on different pooled
+ * channels. One channel is limited by its window, so this lets large
+ * transfers scale with the number of channels.
+ * <p>
+ * Local content is accessed at an offset, so segments may complete in any
+ * order. The size at both ends is checked once every segment is done.
+ */
+class SftpSegmentedTransfer {
+
+	private final SftpFileSystem fs;
+	private final String path;
+	private final long segmentSize;
+	private final int concurrency;
+	private final int blockSize;
+	private final int queueDepth;
+	private final ExecutorService executor;
+	private final AtomicLong nextSegment = new AtomicLong();
+	private final AtomicBoolean failed = new AtomicBoolean();
+
+	SftpSegmentedTransfer(SftpFileSystem fs, String path, long segmentSize, int concurrency, int blockSize,
+			int queueDepth, ExecutorService executor) {
+		this.fs = fs;
+		this.path = path;
+		this.segmentSize = Math.max(1, segmentSize);
+		this.concurrency = Math.max(1, concurrency);
+		this.blockSize = Math.max(1, blockSize);
+		this.queueDepth = queueDepth;
+		this.executor = executor;
+	}
+
+	/**
+	 * Download the remote file to a local file, which is created or replaced.
+	 *
+	 * @param target local file
+	 * @param size size of the remote file
+	 * @throws IOException on error
+	 */
+	void download(File target, final long size) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+			raf.setLength(size);
+			final FileChannel out = raf.getChannel();
+			run(size, new SegmentAction() {
+				@Override
+				public void transfer(SftpClient sftp, long start, long end) throws Exception {
+					downloadSegment(sftp, out, start, end);
+				}
+			});
+			if (out.size() != size) {
+				throw new IOException(String.format("Downloaded %d bytes of %s, expected %d.", out.size(), path, size));
+			}
+		}
+		verifyRemoteSize(size);
+	}
+
+	/**
+	 * Upload a local file to the remote file, which is created or replaced.
+	 *
+	 * @param source local file
+	 * @throws IOException on error
+	 */
+	void upload(File source) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+			final FileChannel in = raf.getChannel();
+			final long size = in.size();
+			/* Create or truncate the file before segments are written into it */
+			SftpClient sftp = fs.getClient();
+			try {
+				sftp.openFile(path, SftpChannel.OPEN_WRITE | SftpChannel.OPEN_CREATE | SftpChannel.OPEN_TRUNCATE)
+						.close();
+			} catch (SftpStatusException | SshException e) {
+				throw toIOException(e);
+			} finally {
+				fs.putClient(sftp);
+			}
+			run(size, new SegmentAction() {
+				@Override
+				public void transfer(SftpClient sftp, long start, long end) throws Exception {
+					uploadSegment(sftp, in, start, end);
+				}
+			});
+			verifyRemoteSize(size);
+		}
+	}
+
+	private void run(long size, SegmentAction action) throws IOException {
+		long segments = Math.max(1, (size + segmentSize - 1) / segmentSize);
+		int workers = (int) Math.min(concurrency, segments);
+		List<Future<Void>> futures = new ArrayList<>(workers);
+		for (int i = 0; i < workers; i++) {
+			futures.add(executor.submit(new Worker(action, size, segments)));
+		}
+		IOException error = null;
+		try {
+			for (Future<Void> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException ee) {
+					if (error == null) {
+						Throwable cause = ee.getCause();
+						error = cause instanceof IOException ? (IOException) cause
+								: new IOException(String.format("Failed to transfer %s.", path), cause);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failed.set(true);
+			for (Future<Void> f : futures) {
+				f.cancel(true);
+			}
+			throw new InterruptedIOException("Interrupted waiting for transfer of " + path);
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private void downloadSegment(SftpClient sftp, FileChannel out, long start, long end) throws Exception {
+		SftpHandle handle = sftp.openFile(path, SftpChannel.OPEN_READ);
+		InputStream stream;
+		try {
+			stream = new SftpPipelinedInputStream(sftp.getSubsystemChannel(), handle, start, end, blockSize,
+					queueDepth);
+		} catch (Exception e) {
+			/* Once the stream exists, it closes the handle */
+			handle.close();
+			throw e;
+		}
+		long position = start;
+		try (InputStream in = stream) {
+			byte[] buf = new byte[blockSize];
+			int read;
+			while (!failed.get() && position < end && (read = in.read(buf)) != -1) {
+				ByteBuffer bb = ByteBuffer.wrap(buf, 0, read);
+				while (bb.hasRemaining()) {
+					position += out.write(bb, position);
+				}
+			}
+		}
+		if (!failed.get() && position != end) {
+			throw new IOException(String.format(
+					"Expected %d bytes of %s from offset %d, but got %d. It may have changed while being read.",
+					end - start, path, start, position - start));
+		}
+	}
+
+	private void uploadSegment(SftpClient sftp, FileChannel in, long start, long end) throws Exception {
+		SftpHandle handle = sftp.openFile(path, SftpChannel.OPEN_WRITE);
+		OutputStream stream;
+		try {
+			stream = new SftpPipelinedOutputStream(sftp.getSubsystemChannel(), handle, start, blockSize,
+					queueDepth);
+		} catch (Exception e) {
+			/* Once the stream exists, it closes the handle */
+			handle.close();
+			throw e;
+		}
+		long position = start;
+		try (OutputStream out = stream) {
+			ByteBuffer buf = ByteBuffer.allocate(blockSize);
+			while (!failed.get() && position < end) {
+				buf.clear();
+				buf.limit((int) Math.min(blockSize, end - position));
+				int read = in.read(buf, position);
+				if (read == -1) {
+					throw new IOException(String.format("%s ended at %d while being uploaded.", path, position));
+				}
+				out.write(buf.array(), 0, read);
+				position += read;
+			}
+		}
+	}
+
+	private void verifyRemoteSize(long size) throws IOException {
+		SftpClient sftp = fs.getClient();
+		try {
+			long remoteSize = sftp.stat(path).getSize().longValue();
+			if (remoteSize != size) {
+				throw new IOException(String.format("%s is %d bytes, expected %d. It may have changed during transfer.",
+						path, remoteSize, size));
+			}
+		} catch (SftpStatusException | SshException e) {
+			throw toIOException(e);
+		} finally {
+			fs.putClient(sftp);
+		}
+	}
+
+	private static IOException toIOException(Exception e) {
+		if (e instanceof SshException) {
+			return new SshIOException((SshException) e);
+		}
+		return new IOException(e.getMessage(), e);
+	}
+
+	private interface SegmentAction {
+		void transfer(SftpClient sftp, long start, long end) throws Exception;
+	}
+
+	/**
+	 * Takes segments in turn until there are none left, using one channel for
+	 * all of them.
+	 */
+	private class Worker implements Callable<Void> {
+		private final SegmentAction action;
+		private final long size;
+		private final long segments;
+
+		Worker(SegmentAction action, long size, long segments) {
+			this.action = action;
+			this.size = size;
+			this.segments = segments;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			SftpClient sftp = fs.getClient();
+			try {
+				long segment;
+				while (!failed.get() && (segment = nextSegment.getAndIncrement()) < segments) {
+					long start = segment * segmentSize;
+					long end = Math.min(size, start + segmentSize);
+					if (Log.isDebugEnabled()) {
+						Log.debug(String.format("Transferring %s bytes %d to %d", path, start, end));
+					}
+					action.transfer(sftp, start, end);
+				}
+				return null;
+			} catch (Exception e) {
+				failed.set(true);
+				throw e;
+			} finally {
+				fs.putClient(sftp);
+			}
+		}
+	}
+}
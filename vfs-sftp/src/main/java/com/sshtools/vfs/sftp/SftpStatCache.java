@@ -0,0 +1,95 @@
+package com.sshtools.vfs.sftp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.sshtools.common.sftp.SftpFileAttributes;
+
+/**
+ * A bounded cache of file attributes by path, so that attaching a file object
+ * again soon after it was last attached (or listed) does not need another
+ * stat. Attributes expire after a fixed time to live, and the least recently
+ * used are evicted when the cache is full. That a path does not exist is
+ * cached too.
+ */
+class SftpStatCache {
+
+	static class Entry {
+		private final SftpFileAttributes attributes;
+		private final long expires;
+
+		Entry(SftpFileAttributes attributes, long expires) {
+			this.attributes = attributes;
+			this.expires = expires;
+		}
+
+		/**
+		 * Get the attributes.
+		 *
+		 * @return attributes, or <code>null</code> if the path does not exist
+		 */
+		SftpFileAttributes getAttributes() {
+			return attributes;
+		}
+	}
+
+	private final long ttl;
+	private final Map<String, Entry> entries;
+
+	SftpStatCache(long ttl, final int maxEntries) {
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	boolean isEnabled() {
+		return ttl > 0;
+	}
+
+	synchronized Entry get(String path) {
+		Entry e = entries.get(path);
+		if (e != null && e.expires < System.currentTimeMillis()) {
+			entries.remove(path);
+			return null;
+		}
+		return e;
+	}
+
+	/**
+	 * Cache the attributes of a path.
+	 *
+	 * @param path path
+	 * @param attributes attributes, or <code>null</code> if it does not exist
+	 */
+	synchronized void put(String path, SftpFileAttributes attributes) {
+		if (isEnabled()) {
+			entries.put(path, new Entry(attributes, System.currentTimeMillis() + ttl));
+		}
+	}
+
+	/**
+	 * Forget about a path (and optionally everything below it), because it
+	 * has been changed.
+	 *
+	 * @param path path
+	 * @param descendants also forget everything below the path
+	 */
+	synchronized void invalidate(String path, boolean descendants) {
+		entries.remove(path);
+		if (descendants) {
+			String prefix = path.endsWith("/") ? path : path + '/';
+			for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+				if (it.next().startsWith(prefix)) {
+					it.remove();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,371 @@
+package com.sshtools.vfs.sftp;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.NameScope;
+import org.apache.commons.vfs2.provider.UriParser;
+
+import com.sshtools.client.sftp.SftpClient;
+import com.sshtools.client.sftp.SftpFile;
+import com.sshtools.client.sftp.SftpHandle;
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.sftp.SftpFileAttributes;
+import com.sshtools.common.sftp.SftpStatusException;
+
+/**
+ * Walks a tree of folders, listing a number of them at once over separate
+ * pooled channels, and passing the entries of each folder to a consumer once
+ * it has been listed and its channel returned. Entries carry the attributes the server sent with them, so
+ * nothing needs to be stat'ed, and no file objects are created unless asked
+ * for.
+ * <p>
+ * The consumer is only called by one thread at a time, but not always the
+ * same thread, and entries arrive in no particular order. Symbolic links are
+ * reported but never followed. A folder that cannot be listed (for example,
+ * because of its permissions) is skipped.
+ */
+public class SftpTreeWalker {
+
+	/**
+	 * An entry found while walking.
+	 */
+	public final static class Entry {
+		private final SftpFileObject root;
+		private final String path;
+		private final String relativePath;
+		private final int depth;
+		private final SftpFileAttributes attributes;
+
+		Entry(SftpFileObject root, String path, String relativePath, int depth, SftpFileAttributes attributes) {
+			this.root = root;
+			this.path = path;
+			this.relativePath = relativePath;
+			this.depth = depth;
+			this.attributes = attributes;
+		}
+
+		/**
+		 * Get the absolute path of the entry.
+		 *
+		 * @return path
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Get the path of the entry relative to the folder being walked.
+		 *
+		 * @return relative path
+		 */
+		public String getRelativePath() {
+			return relativePath;
+		}
+
+		/**
+		 * Get the depth of the entry, where the children of the folder being
+		 * walked are at depth 1.
+		 *
+		 * @return depth
+		 */
+		public int getDepth() {
+			return depth;
+		}
+
+		/**
+		 * Get the attributes the server returned with the entry. For a
+		 * symbolic link, these are of the link itself.
+		 *
+		 * @return attributes
+		 */
+		public SftpFileAttributes getAttributes() {
+			return attributes;
+		}
+
+		public boolean isDirectory() {
+			return attributes.isDirectory();
+		}
+
+		/**
+		 * Resolve the file object for this entry, which is given the entry's
+		 * attributes if it has not yet been attached.
+		 *
+		 * @return file
+		 * @throws FileSystemException on error
+		 */
+		public FileObject resolveFile() throws FileSystemException {
+			FileObject file = root.resolveFile(UriParser.encode(relativePath), NameScope.DESCENDENT);
+			if (file instanceof SftpFileObject) {
+				((SftpFileObject) file).setListedAttributes(attributes);
+			}
+			return file;
+		}
+	}
+
+	/**
+	 * Chooses which entries are passed to the consumer, and which folders
+	 * are walked.
+	 */
+	public interface Selector {
+		/**
+		 * Whether to pass an entry to the consumer.
+		 *
+		 * @param entry entry
+		 * @return include
+		 */
+		boolean includeEntry(Entry entry);
+
+		/**
+		 * Whether to walk a folder. Only called for folders that are within
+		 * the depth limit.
+		 *
+		 * @param entry folder
+		 * @return traverse
+		 */
+		boolean traverseFolder(Entry entry);
+	}
+
+	/**
+	 * Receives entries as they are found.
+	 */
+	public interface Consumer {
+		/**
+		 * Accept an entry. Throwing an exception stops the walk.
+		 *
+		 * @param entry entry
+		 * @throws Exception to stop the walk
+		 */
+		void accept(Entry entry) throws Exception;
+	}
+
+	/**
+	 * Selects everything.
+	 */
+	public final static Selector ALL = new Selector() {
+		@Override
+		public boolean includeEntry(Entry entry) {
+			return true;
+		}
+
+		@Override
+		public boolean traverseFolder(Entry entry) {
+			return true;
+		}
+	};
+
+	private final SftpFileObject root;
+	private final SftpFileSystem fs;
+	private final int concurrency;
+	private final int maxDepth;
+	private final Selector selector;
+	private final Consumer consumer;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final Deque<Entry> folders = new ArrayDeque<>();
+	private final Object consumerLock = new Object();
+	private int active;
+	private volatile boolean stopped;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param root folder to walk
+	 * @param fs file system
+	 * @param concurrency maximum number of folders listed at once
+	 * @param maxDepth maximum depth of entries, or -1 for no limit
+	 * @param selector selector
+	 * @param consumer consumer
+	 */
+	SftpTreeWalker(SftpFileObject root, SftpFileSystem fs, int concurrency, int maxDepth, Selector selector,
+			Consumer consumer) {
+		this.root = root;
+		this.fs = fs;
+		this.concurrency = Math.max(1, concurrency);
+		this.maxDepth = maxDepth;
+		this.selector = selector == null ? ALL : selector;
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Walk the tree, returning once every selected folder has been listed.
+	 *
+	 * @throws FileSystemException on error
+	 */
+	void walk() throws FileSystemException {
+		folders.add(new Entry(root, root.getName().getPathDecoded(), "", 0, null));
+		List<Future<Void>> futures = new ArrayList<>(concurrency);
+		/*
+		 * Not the transfer executor, the consumer may start transfers, which
+		 * must not wait behind the walk
+		 */
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+				new SftpFileSystem.DaemonThreadFactory("SftpWalk"));
+		for (int i = 0; i < concurrency; i++) {
+			futures.add(executor.submit(new Worker()));
+		}
+		executor.shutdown();
+		Exception error = null;
+		try {
+			for (Future<Void> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException ee) {
+					if (error == null) {
+						error = ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			stop();
+			throw new FileSystemException(new InterruptedIOException("Interrupted walking " + root.getName()));
+		}
+		if (error instanceof FileSystemException) {
+			throw (FileSystemException) error;
+		} else if (error != null) {
+			throw new FileSystemException("vfs.provider.sftp/list-children.error", error, root.getName());
+		}
+	}
+
+	private void stop() {
+		lock.lock();
+		try {
+			stopped = true;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take the next folder to list, waiting while other workers are listing
+	 * and may yet find more.
+	 *
+	 * @return folder, or null when there are no more
+	 */
+	private Entry take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (folders.isEmpty() && active > 0 && !stopped) {
+				changed.await();
+			}
+			if (folders.isEmpty() || stopped) {
+				changed.signalAll();
+				return null;
+			}
+			active++;
+			/* Most recently found first, so the queue stays small */
+			return folders.pollLast();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void done(List<Entry> found) {
+		lock.lock();
+		try {
+			folders.addAll(found);
+			active--;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Read all entries of a folder. Only the listing is done with the client,
+	 * the consumer is called once it has been returned, so that a consumer
+	 * using the file system cannot be starved of clients by the walk.
+	 */
+	private List<SftpFile> read(Entry folder) throws Exception {
+		List<SftpFile> files = new ArrayList<>();
+		SftpClient sftp = fs.getClient();
+		try {
+			SftpHandle handle;
+			try {
+				handle = sftp.openDirectory(folder.path);
+			} catch (SftpStatusException e) {
+				if (Log.isDebugEnabled()) {
+					Log.debug(String.format("Skipping %s, it could not be listed.", folder.path), e);
+				}
+				return files;
+			}
+			try {
+				while (!stopped && handle.listChildren(files) > -1) {
+					/* Each batch is added to files */
+				}
+			} catch (SftpStatusException e) {
+				if (Log.isDebugEnabled()) {
+					Log.debug(String.format("Stopped listing %s.", folder.path), e);
+				}
+			} finally {
+				handle.close();
+			}
+		} finally {
+			fs.putClient(sftp);
+		}
+		return files;
+	}
+
+	private List<Entry> list(Entry folder) throws Exception {
+		List<Entry> subfolders = new ArrayList<>();
+		for (SftpFile file : read(folder)) {
+			if (stopped) {
+				break;
+			}
+			String name = file.getFilename();
+			if (name.equals(".") || name.equals("..")) {
+				continue;
+			}
+			Entry entry = new Entry(root, folder.path.endsWith("/") ? folder.path + name
+					: folder.path + "/" + name,
+					folder.relativePath.isEmpty() ? name : folder.relativePath + "/" + name, folder.depth + 1,
+					file.attributes());
+			root.cacheListed(folder.path, name, file.attributes());
+			if (selector.includeEntry(entry)) {
+				synchronized (consumerLock) {
+					consumer.accept(entry);
+				}
+			}
+			if (entry.isDirectory() && !entry.getAttributes().isLink()
+					&& (maxDepth < 0 || entry.depth < maxDepth) && selector.traverseFolder(entry)) {
+				subfolders.add(entry);
+			}
+		}
+		return subfolders;
+	}
+
+	private class Worker implements Callable<Void> {
+		@Override
+		public Void call() throws Exception {
+			Entry folder;
+			while ((folder = take()) != null) {
+				List<Entry> found = null;
+				try {
+					found = list(folder);
+				} finally {
+					if (found == null) {
+						/* Failed, so the others give up too */
+						stop();
+					}
+					done(found == null ? Collections.<Entry>emptyList() : found);
+				}
+			}
+			return null;
+		}
+	}
+}
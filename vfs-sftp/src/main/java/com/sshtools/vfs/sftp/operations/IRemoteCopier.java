@@ -0,0 +1,21 @@
+package com.sshtools.vfs.sftp.operations;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.operations.FileOperation;
+
+/**
+ * Copy a file, on the server itself where possible.
+ */
+public interface IRemoteCopier extends FileOperation {
+    /**
+     * Copy the file to another. If the destination is on the same server, and
+     * the server supports the <code>copy-file</code> or <code>copy-data</code>
+     * extension, the content never leaves the server. Otherwise it is
+     * streamed.
+     *
+     * @param destination destination
+     * @throws FileSystemException on error
+     */
+    void copyTo(FileObject destination) throws FileSystemException;
+}
@@ -0,0 +1,20 @@
+package com.sshtools.vfs.sftp.operations;
+
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.operations.FileOperation;
+
+/**
+ * Get a hash of a file's content, computed on the server where possible.
+ */
+public interface IRemoteHashGetter extends FileOperation {
+    /**
+     * Get a hash of the content. If the server supports the
+     * <code>check-file</code> extension (or for MD5, <code>md5-hash</code>) it
+     * computes the hash, otherwise the content is read to compute it.
+     *
+     * @param algorithm one of md5, sha1, sha256 or sha512
+     * @return hex encoded hash
+     * @throws FileSystemException on error
+     */
+    String getHash(String algorithm) throws FileSystemException;
+}
@@ -0,0 +1,30 @@
+package com.sshtools.vfs.sftp.operations;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+
+import com.sshtools.vfs.sftp.SftpFileObject;
+
+public class RemoteCopier implements IRemoteCopier {
+    private final SftpFileObject file;
+
+    /**
+     * Constructor.
+     *
+     * @param file file
+     */
+    public RemoteCopier(SftpFileObject file) {
+        this.file = file;
+    }
+
+    @Override
+    public void copyTo(FileObject destination) throws FileSystemException {
+        file.copyTo(destination);
+    }
+
+    @Override
+    public void process() throws FileSystemException {
+
+        // Do nothing
+    }
+}
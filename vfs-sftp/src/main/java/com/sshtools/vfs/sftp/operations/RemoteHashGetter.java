@@ -0,0 +1,29 @@
+package com.sshtools.vfs.sftp.operations;
+
+import org.apache.commons.vfs2.FileSystemException;
+
+import com.sshtools.vfs.sftp.SftpFileObject;
+
+public class RemoteHashGetter implements IRemoteHashGetter {
+    private final SftpFileObject file;
+
+    /**
+     * Constructor.
+     *
+     * @param file file
+     */
+    public RemoteHashGetter(SftpFileObject file) {
+        this.file = file;
+    }
+
+    @Override
+    public String getHash(String algorithm) throws FileSystemException {
+        return file.getHash(algorithm);
+    }
+
+    @Override
+    public void process() throws FileSystemException {
+
+        // Do nothing
+    }
+}
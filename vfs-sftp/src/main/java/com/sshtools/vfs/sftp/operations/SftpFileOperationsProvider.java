@@ -0,0 +1,45 @@
+package com.sshtools.vfs.sftp.operations;
+
+import java.util.Collection;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.operations.FileOperation;
+import org.apache.commons.vfs2.operations.FileOperationProvider;
+
+import com.sshtools.vfs.sftp.SftpFileObject;
+
+public class SftpFileOperationsProvider implements FileOperationProvider {
+
+    @Override
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void collectOperations(Collection operationsList, FileObject file) throws FileSystemException {
+        if (file instanceof SftpFileObject) {
+            operationsList.add(RemoteCopier.class);
+            operationsList.add(RemoteHashGetter.class);
+        }
+    }
+
+    /**
+     * Depending on operationClass return the server side copier or hash getter.
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public FileOperation getOperation(FileObject file, Class operationClass) throws FileSystemException {
+        if (file instanceof SftpFileObject) {
+            if (operationClass.equals(IRemoteCopier.class)) {
+                return new RemoteCopier((SftpFileObject)file);
+            } else if (operationClass.equals(IRemoteHashGetter.class)) {
+                return new RemoteHashGetter((SftpFileObject)file);
+            }
+        }
+
+        throw new FileSystemException(
+                String.format(
+                        "Operation %s is not provided for file %s",
+                        operationClass.getName(),
+                        file.getName()
+                )
+        );
+    }
+}
@@ -25,23 +25,24 @@ import java.util.List;
 
 import org.apache.commons.vfs2.FileName;
 import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSelector;
 import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileSystemOptions;
 import org.apache.commons.vfs2.FileType;
 import org.apache.commons.vfs2.FileTypeHasNoContentException;
+import org.apache.commons.vfs2.NameScope;
 import org.apache.commons.vfs2.RandomAccessContent;
-import org.apache.commons.vfs2.UserAuthenticationData;
 import org.apache.commons.vfs2.provider.AbstractFileName;
 import org.apache.commons.vfs2.provider.AbstractFileObject;
 import org.apache.commons.vfs2.provider.UriParser;
+import org.apache.commons.vfs2.util.FileObjectUtils;
 import org.apache.commons.vfs2.util.RandomAccessMode;
-import org.apache.commons.vfs2.util.UserAuthenticatorUtils;
 
-import jcifs.CIFSContext;
 import jcifs.CIFSException;
 import jcifs.CloseableIterator;
 import jcifs.SmbRandomAccess;
 import jcifs.SmbResource;
-import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.SmbAuthException;
 import jcifs.smb.SmbException;
 
 /**
@@ -52,6 +53,10 @@ public class SmbFileObject
 {
     // private final String fileName;
     private SmbResource file;
+    private boolean listed;
+    private FileType type;
+    private long size;
+    private long lastModified;
 
     protected SmbFileObject(final AbstractFileName name,
                             final SmbFileSystem fileSystem) throws FileSystemException
@@ -69,7 +74,7 @@ public class SmbFileObject
         // Defer creation of the SmbFile to here
         if (file == null)
         {
-            file = createSmbFile(getName());
+            file = createSmbFile(getName(), false);
         }
     }
 
@@ -78,55 +83,100 @@ public class SmbFileObject
     {
         // file closed through content-streams
         file = null;
+        listed = false;
+        type = null;
     }
 
-    private SmbResource createSmbFile(final FileName fileName)
+    /**
+     * Forget the attributes once the file has been changed, created or
+     * deleted. The resource is replaced too, so that it does not answer from
+     * its own cache.
+     */
+    @Override
+    protected void onChange() throws Exception
+    {
+        if (file != null)
+        {
+            file = createSmbFile(getName(), file.toString().endsWith("/"));
+        }
+        listed = false;
+        type = null;
+    }
+
+    /**
+     * Creates the resource for a file. This does not contact the server.
+     * Folders need a trailing slash.
+     */
+    private SmbResource createSmbFile(final FileName fileName, final boolean folder)
         throws MalformedURLException, FileSystemException, CIFSException
     {
         final SmbFileName smbFileName = (SmbFileName) fileName;
 
-        final String path = smbFileName.getUriWithoutAuth();
+        String path = smbFileName.getUriWithoutAuth();
+        if (folder && !path.endsWith("/"))
+        {
+            path += "/";
+        }
+
+        return getAbstractFileSystem().getCIFSContext().get(path);
+    }
+
+    /**
+     * Reads the type, size and last modified time of the file with one query,
+     * unless they are already known, or came with the listing of its parent.
+     */
+    private void loadAttributes() throws Exception
+    {
+        final SmbFileSystem fs = getAbstractFileSystem();
+        if (type != null || listed)
+        {
+            fs.attributeHit();
+        }
+        else
+        {
+            fs.attributeMiss();
+        }
+        if (type != null)
+        {
+            return;
+        }
 
-        UserAuthenticationData authData = null;
-        SmbResource file;
         try
         {
-            authData = UserAuthenticatorUtils.authenticate(
-                           getFileSystem().getFileSystemOptions(),
-                           SmbFileProvider.AUTHENTICATOR_TYPES);
-            if(authData == null)
-        		throw new IllegalStateException("Authentication cancelled.");
-            
-            CIFSContext ctx = SmbFileSystemConfigBuilder.getInstance().getContext(getFileSystem().getFileSystemOptions());
-
-            	ctx = ctx.withCredentials(new NtlmPasswordAuthentication(ctx, 
-                    UserAuthenticatorUtils.toString(
-                        UserAuthenticatorUtils.getData(authData, UserAuthenticationData.DOMAIN,
-                            UserAuthenticatorUtils.toChar(smbFileName.getDomain()))),
-                    UserAuthenticatorUtils.toString(
-                        UserAuthenticatorUtils.getData(authData, UserAuthenticationData.USERNAME,
-                            UserAuthenticatorUtils.toChar(smbFileName.getUserName()))),
-                    UserAuthenticatorUtils.toString(
-                        UserAuthenticatorUtils.getData(authData, UserAuthenticationData.PASSWORD,
-                            UserAuthenticatorUtils.toChar(smbFileName.getPassword())))));
-            	
-
-            // if auth == null SmbFile uses default credentials
-            // ("jcifs.smb.client.domain", "?"), ("jcifs.smb.client.username", "GUEST"),
-            // ("jcifs.smb.client.password", BLANK);
-            // ANONYMOUS=("","","")
-            file = ctx.get(path);
-
-            if (file.isDirectory() && !file.toString().endsWith("/"))
+            // exists() queries everything, the rest is answered from what it got
+            FileType loaded;
+            if (!file.exists())
             {
-            	// TODO really?
-                file =  ctx.get(path + "/");
+                loaded = FileType.IMAGINARY;
             }
-            return file;
+            else if (file.isDirectory())
+            {
+                loaded = FileType.FOLDER;
+            }
+            else if (file.isFile())
+            {
+                loaded = FileType.FILE;
+            }
+            else
+            {
+                throw new FileSystemException("vfs.provider.smb/get-type.error", getName());
+            }
+
+            size = loaded == FileType.FILE ? file.length() : 0;
+            lastModified = loaded == FileType.IMAGINARY ? 0 : file.lastModified();
+            listed = false;
+            type = loaded;
+        }
+        catch (final SmbAuthException e)
+        {
+            // Credentials may have expired or changed, resolve them again next time
+            getAbstractFileSystem().resetCIFSContext();
+            throw e;
         }
-        finally
+
+        if (type == FileType.FOLDER && !file.toString().endsWith("/"))
         {
-            UserAuthenticatorUtils.cleanup(authData); // might be null
+            file = createSmbFile(getName(), true);
         }
     }
 
@@ -137,20 +187,8 @@ public class SmbFileObject
     @Override
     protected FileType doGetType() throws Exception
     {
-        if (!file.exists())
-        {
-            return FileType.IMAGINARY;
-        }
-        else if (file.isDirectory())
-        {
-            return FileType.FOLDER;
-        }
-        else if (file.isFile())
-        {
-            return FileType.FILE;
-        }
-
-        throw new FileSystemException("vfs.provider.smb/get-type.error", getName());
+        loadAttributes();
+        return type;
     }
 
     /**
@@ -161,7 +199,8 @@ public class SmbFileObject
     protected String[] doListChildren() throws Exception
     {
         // VFS-210: do not try to get listing for anything else than directories
-        if (!file.isDirectory())
+        loadAttributes();
+        if (type != FileType.FOLDER)
         {
             return null;
         }
@@ -176,6 +215,49 @@ public class SmbFileObject
         return UriParser.encode(l.toArray(new String[0]));
     }
 
+    /**
+     * Lists the children of the file, giving each the resource from the
+     * listing. These carry the size, times and attributes the server
+     * returned with the directory entries, so reading the type, size or last
+     * modified time of a child does not go back to the server.
+     */
+    @Override
+    protected FileObject[] doListChildrenResolved() throws Exception
+    {
+        loadAttributes();
+        if (type != FileType.FOLDER)
+        {
+            return null;
+        }
+
+        List<FileObject> l = new ArrayList<>();
+        try(CloseableIterator<SmbResource> s = file.children()) {
+        	while(s.hasNext()) {
+        		SmbResource r = s.next();
+        		FileObject child = resolveFile(UriParser.encode(r.getName()), NameScope.CHILD);
+        		if(child instanceof SmbFileObject) {
+        			((SmbFileObject) child).setListedResource(r);
+        		}
+        		l.add(child);
+        	}
+        }
+
+        return l.toArray(new FileObject[0]);
+    }
+
+    /**
+     * Use a resource found by listing the parent, unless this file is
+     * already attached to one.
+     */
+    void setListedResource(final SmbResource resource)
+    {
+        if (!isAttached() && file == null)
+        {
+            file = resource;
+            listed = true;
+        }
+    }
+
     /**
      * Determines if this file is hidden.
      */
@@ -197,7 +279,7 @@ public class SmbFileObject
     @Override
     protected void doRename(final FileObject newfile) throws Exception
     {
-        file.renameTo(createSmbFile(newfile.getName()));
+        file.renameTo(createSmbFile(newfile.getName(), false));
     }
 
     /**
@@ -207,7 +289,7 @@ public class SmbFileObject
     protected void doCreateFolder() throws Exception
     {
         file.mkdir();
-        file = createSmbFile(getName());
+        file = createSmbFile(getName(), true);
     }
 
     /**
@@ -216,7 +298,8 @@ public class SmbFileObject
     @Override
     protected long doGetContentSize() throws Exception
     {
-        return file.length();
+        loadAttributes();
+        return size;
     }
 
     /**
@@ -226,7 +309,8 @@ public class SmbFileObject
     protected long doGetLastModifiedTime()
         throws Exception
     {
-        return file.lastModified();
+        loadAttributes();
+        return lastModified;
     }
 
     /**
@@ -237,6 +321,13 @@ public class SmbFileObject
     {
         try
         {
+            final SmbFileSystemConfigBuilder builder = SmbFileSystemConfigBuilder.getInstance();
+            final FileSystemOptions opts = getFileSystem().getFileSystemOptions();
+            if (builder.isPipelinedTransfers(opts))
+            {
+                return new SmbPipelinedInputStream(file, 0, getAbstractFileSystem().getTransferExecutor(),
+                        builder.getTransferBlockSize(opts), builder.getTransferQueueDepth(opts));
+            }
             return file.openInputStream();
         }
         catch (final SmbException e)
@@ -260,6 +351,13 @@ public class SmbFileObject
     @Override
     protected OutputStream doGetOutputStream(final boolean bAppend) throws Exception
     {
+        final SmbFileSystemConfigBuilder builder = SmbFileSystemConfigBuilder.getInstance();
+        final FileSystemOptions opts = getFileSystem().getFileSystemOptions();
+        if (builder.isPipelinedTransfers(opts))
+        {
+            return new SmbPipelinedOutputStream(file, bAppend, getAbstractFileSystem().getTransferExecutor(),
+                    builder.getTransferBlockSize(opts), builder.getTransferQueueDepth(opts));
+        }
         return file.openOutputStream(bAppend);
     }
 
@@ -456,10 +554,109 @@ public class SmbFileObject
     	}
 	}
 
+    /**
+     * Copies another file to this one. Files on the same share of the same
+     * server are copied by the server itself (jcifs uses FSCTL_SRV_COPYCHUNK
+     * where it can), rather than passing through this client. If the server
+     * will not copy a file, its content is streamed instead.
+     */
+    @Override
+    public void copyFrom(final FileObject file, final FileSelector selector) throws FileSystemException
+    {
+        if (!isSameShare(file))
+        {
+            super.copyFrom(file, selector);
+            return;
+        }
+        if (!FileObjectUtils.exists(file))
+        {
+            throw new FileSystemException("vfs.provider/copy-missing-file.error", file);
+        }
+
+        final List<FileObject> files = new ArrayList<>();
+        file.findFiles(selector, false, files);
+        for (final FileObject srcFile : files)
+        {
+            final String relPath = file.getName().getRelativeName(srcFile.getName());
+            final FileObject destFile = resolveFile(relPath, NameScope.DESCENDENT_OR_SELF);
+
+            boolean exists = FileObjectUtils.exists(destFile);
+            if (exists && destFile.getType() != srcFile.getType())
+            {
+                destFile.deleteAll();
+                exists = false;
+            }
+
+            if (srcFile.getType().hasContent())
+            {
+                final SmbFileObject src = (SmbFileObject) FileObjectUtils.getAbstractFileObject(srcFile);
+                final SmbFileObject dest = (SmbFileObject) FileObjectUtils.getAbstractFileObject(destFile);
+                try
+                {
+                    src.file.copyTo(dest.file);
+                }
+                catch (final CIFSException e)
+                {
+                    if (e instanceof SmbAuthException)
+                    {
+                        throw new FileSystemException("vfs.provider/copy-file.error", e, srcFile, destFile);
+                    }
+                    // Not copied by the server, stream it
+                    dest.refresh();
+                    try
+                    {
+                        srcFile.getContent().write(destFile);
+                    }
+                    catch (final IOException ioe)
+                    {
+                        throw new FileSystemException("vfs.provider/copy-file.error", ioe, srcFile, destFile);
+                    }
+                    continue;
+                }
+
+                // The copy happened behind VFS's back, so update state and fire events
+                try
+                {
+                    dest.refresh();
+                    if (exists)
+                    {
+                        dest.handleChanged();
+                    }
+                    else
+                    {
+                        dest.handleCreate(FileType.FILE);
+                    }
+                }
+                catch (final Exception e)
+                {
+                    throw new FileSystemException(e);
+                }
+            }
+            else if (srcFile.getType().hasChildren())
+            {
+                destFile.createFolder();
+            }
+        }
+    }
+
+    private boolean isSameShare(final FileObject file) throws FileSystemException
+    {
+        if (!(FileObjectUtils.getAbstractFileObject(file) instanceof SmbFileObject))
+        {
+            return false;
+        }
+        final SmbFileName src = (SmbFileName) file.getName();
+        final SmbFileName dest = (SmbFileName) getName();
+        return src.getHostName().equalsIgnoreCase(dest.getHostName())
+            && src.getPort() == dest.getPort()
+            && src.getShare().equalsIgnoreCase(dest.getShare());
+    }
+
     @Override
     protected boolean doSetLastModifiedTime(final long modtime) throws Exception
     {
         file.setLastModified(modtime);
+        lastModified = modtime;
         return true;
     }
 }
@@ -17,14 +17,29 @@
 package com.sshtools.vfs.smbng;
 
 import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.vfs2.Capability;
 import org.apache.commons.vfs2.FileName;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
 import org.apache.commons.vfs2.FileSystemOptions;
+import org.apache.commons.vfs2.UserAuthenticationData;
 import org.apache.commons.vfs2.provider.AbstractFileName;
 import org.apache.commons.vfs2.provider.AbstractFileSystem;
+import org.apache.commons.vfs2.util.UserAuthenticatorUtils;
+
+import jcifs.CIFSContext;
+import jcifs.CIFSException;
+import jcifs.config.DelegatingConfiguration;
+import jcifs.context.BaseContext;
+import jcifs.smb.NtlmPasswordAuthentication;
 
 /**
  * An SMB file system.
@@ -32,11 +47,202 @@ import org.apache.commons.vfs2.provider.AbstractFileSystem;
 public class SmbFileSystem
     extends AbstractFileSystem
 {
+    private final AtomicLong attributeHits = new AtomicLong();
+    private final AtomicLong attributeMisses = new AtomicLong();
+    private CIFSContext context;
+    private CIFSContext ownContext;
+    private ExecutorService transferExecutor;
+
     protected SmbFileSystem(final FileName rootName, final FileSystemOptions fileSystemOptions)
     {
         super(rootName, null, fileSystemOptions);
     }
 
+    /**
+     * Returns the number of times the type, size or last modified time of a
+     * file was answered without asking the server, either because the file
+     * already had them or because they came with a directory listing.
+     */
+    public long getAttributeCacheHits()
+    {
+        return attributeHits.get();
+    }
+
+    /**
+     * Returns the number of times the attributes of a file had to be queried
+     * from the server.
+     */
+    public long getAttributeCacheMisses()
+    {
+        return attributeMisses.get();
+    }
+
+    void attributeHit()
+    {
+        attributeHits.incrementAndGet();
+    }
+
+    void attributeMiss()
+    {
+        attributeMisses.incrementAndGet();
+    }
+
+    /**
+     * Returns the context used for every file in this file system. The
+     * credentials are resolved when it is first needed, and the context (and
+     * so its sessions and tree connections) is then shared, until
+     * {@link #resetCIFSContext()} is called because authentication failed.
+     */
+    synchronized CIFSContext getCIFSContext() throws FileSystemException
+    {
+        if (context == null)
+        {
+            context = createContext();
+        }
+        return context;
+    }
+
+    /**
+     * Discards the shared context, so the credentials are resolved again the
+     * next time it is needed.
+     */
+    synchronized void resetCIFSContext()
+    {
+        context = null;
+    }
+
+    /**
+     * Returns the executor pipelined transfers issue their requests on. The
+     * jcifs calls block, so each outstanding request needs a thread.
+     */
+    synchronized ExecutorService getTransferExecutor()
+    {
+        if (transferExecutor == null)
+        {
+            transferExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory()
+                    {
+                        private final AtomicInteger counter = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable r)
+                        {
+                            final Thread t = new Thread(r, "SmbTransfer-" + counter.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return transferExecutor;
+    }
+
+    @Override
+    protected void doCloseCommunicationLink()
+    {
+        final CIFSContext toClose;
+        synchronized (this)
+        {
+            context = null;
+            toClose = ownContext;
+            ownContext = null;
+            if (transferExecutor != null)
+            {
+                transferExecutor.shutdown();
+                transferExecutor = null;
+            }
+        }
+        if (toClose != null)
+        {
+            try
+            {
+                toClose.close();
+            }
+            catch (final CIFSException e)
+            {
+                // Nothing more can be done with it
+            }
+        }
+    }
+
+    /**
+     * Returns the context to add credentials to. This is the one from the
+     * options, unless the buffer sizes are configured, in which case it is
+     * a context of this file system's own with the same configuration but
+     * for the buffer sizes. The context from the options may be shared with
+     * other file systems, so is never closed here.
+     */
+    private CIFSContext getBaseContext()
+    {
+        final SmbFileSystemConfigBuilder builder = SmbFileSystemConfigBuilder.getInstance();
+        final CIFSContext base = builder.getContext(getFileSystemOptions());
+        final int bufferSize = builder.getBufferSize(getFileSystemOptions());
+        if (bufferSize <= 0)
+        {
+            return base;
+        }
+        if (ownContext == null)
+        {
+            ownContext = new BaseContext(new DelegatingConfiguration(base.getConfig())
+            {
+                @Override
+                public int getReceiveBufferSize()
+                {
+                    return bufferSize;
+                }
+
+                @Override
+                @Deprecated
+                public int getRecieveBufferSize()
+                {
+                    return bufferSize;
+                }
+
+                @Override
+                public int getSendBufferSize()
+                {
+                    return bufferSize;
+                }
+            });
+        }
+        return ownContext;
+    }
+
+    private CIFSContext createContext() throws FileSystemException
+    {
+        final SmbFileName smbFileName = (SmbFileName) getRootName();
+
+        UserAuthenticationData authData = null;
+        try
+        {
+            authData = UserAuthenticatorUtils.authenticate(
+                           getFileSystemOptions(),
+                           SmbFileProvider.AUTHENTICATOR_TYPES);
+            if(authData == null)
+        		throw new IllegalStateException("Authentication cancelled.");
+
+            final CIFSContext ctx = getBaseContext();
+
+            // if auth == null SmbFile uses default credentials
+            // ("jcifs.smb.client.domain", "?"), ("jcifs.smb.client.username", "GUEST"),
+            // ("jcifs.smb.client.password", BLANK);
+            // ANONYMOUS=("","","")
+            return ctx.withCredentials(new NtlmPasswordAuthentication(ctx,
+                    UserAuthenticatorUtils.toString(
+                        UserAuthenticatorUtils.getData(authData, UserAuthenticationData.DOMAIN,
+                            UserAuthenticatorUtils.toChar(smbFileName.getDomain()))),
+                    UserAuthenticatorUtils.toString(
+                        UserAuthenticatorUtils.getData(authData, UserAuthenticationData.USERNAME,
+                            UserAuthenticatorUtils.toChar(smbFileName.getUserName()))),
+                    UserAuthenticatorUtils.toString(
+                        UserAuthenticatorUtils.getData(authData, UserAuthenticationData.PASSWORD,
+                            UserAuthenticatorUtils.toChar(smbFileName.getPassword())))));
+        }
+        finally
+        {
+            UserAuthenticatorUtils.cleanup(authData); // might be null
+        }
+    }
+
     /**
      * Creates a file object.
      */
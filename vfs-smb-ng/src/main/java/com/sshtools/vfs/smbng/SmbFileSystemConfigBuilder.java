@@ -9,6 +9,10 @@ import jcifs.context.SingletonContext;
 
 public class SmbFileSystemConfigBuilder extends FileSystemConfigBuilder {
 	private static final String CONTEXT = "context";
+	private static final String BUFFER_SIZE = "bufferSize";
+	private static final String PIPELINED_TRANSFERS = "pipelinedTransfers";
+	private static final String TRANSFER_BLOCK_SIZE = "transferBlockSize";
+	private static final String TRANSFER_QUEUE_DEPTH = "transferQueueDepth";
 	private final static SmbFileSystemConfigBuilder builder = new SmbFileSystemConfigBuilder();
 
 	public static SmbFileSystemConfigBuilder getInstance() {
@@ -34,4 +38,70 @@ public class SmbFileSystemConfigBuilder extends FileSystemConfigBuilder {
 	public void setContext(FileSystemOptions opts, CIFSContext context) {
 		setParam(opts, CONTEXT, context);
 	}
+
+	/**
+	 * Set the size of the buffers used to send and receive SMB messages, which
+	 * limits the size of each read or write request (the server's negotiated
+	 * maximum being the other limit). The jcifs default of 64KiB is well
+	 * below what SMB2 servers allow. When set, the file system uses its own
+	 * context, configured as the one given by {@link #setContext} but for the
+	 * buffer sizes.
+	 *
+	 * @param opts options
+	 * @param bufferSize buffer size in bytes, or 0 to use the context's own
+	 */
+	public void setBufferSize(FileSystemOptions opts, int bufferSize) {
+		setParam(opts, BUFFER_SIZE, bufferSize);
+	}
+
+	public int getBufferSize(FileSystemOptions opts) {
+		return getInteger(opts, BUFFER_SIZE, 0);
+	}
+
+	/**
+	 * Set whether file content is streamed with several read or write
+	 * requests outstanding at once, each over its own handle, rather than
+	 * waiting for each to be answered before sending the next.
+	 *
+	 * @param opts options
+	 * @param pipelinedTransfers pipelined transfers
+	 */
+	public void setPipelinedTransfers(FileSystemOptions opts, boolean pipelinedTransfers) {
+		setParam(opts, PIPELINED_TRANSFERS, pipelinedTransfers);
+	}
+
+	public boolean isPipelinedTransfers(FileSystemOptions opts) {
+		return getBoolean(opts, PIPELINED_TRANSFERS, true);
+	}
+
+	/**
+	 * Set the number of bytes read or written by each outstanding request of
+	 * a pipelined transfer. Blocks larger than the negotiated maximum are
+	 * split into several requests on the same handle.
+	 *
+	 * @param opts options
+	 * @param transferBlockSize block size
+	 */
+	public void setTransferBlockSize(FileSystemOptions opts, int transferBlockSize) {
+		setParam(opts, TRANSFER_BLOCK_SIZE, transferBlockSize);
+	}
+
+	public int getTransferBlockSize(FileSystemOptions opts) {
+		return getInteger(opts, TRANSFER_BLOCK_SIZE, 1048576);
+	}
+
+	/**
+	 * Set the maximum number of blocks a pipelined transfer has outstanding
+	 * at once, which is also the number of handles it opens on the file.
+	 *
+	 * @param opts options
+	 * @param transferQueueDepth queue depth
+	 */
+	public void setTransferQueueDepth(FileSystemOptions opts, int transferQueueDepth) {
+		setParam(opts, TRANSFER_QUEUE_DEPTH, transferQueueDepth);
+	}
+
+	public int getTransferQueueDepth(FileSystemOptions opts) {
+		return getInteger(opts, TRANSFER_QUEUE_DEPTH, 4);
+	}
 }
@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs.smbng;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import jcifs.CIFSException;
+import jcifs.SmbConstants;
+import jcifs.SmbRandomAccess;
+import jcifs.SmbResource;
+
+/**
+ * Reads a file with several blocks requested at once, ahead of where the
+ * reader is. jcifs blocks on each request, so every outstanding block is read
+ * on its own thread over its own handle, which lets the transport have that
+ * many requests (and credits) in flight. Blocks are handed to the reader in
+ * order.
+ */
+class SmbPipelinedInputStream extends InputStream
+{
+    private final SmbResource file;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int queueDepth;
+    private final long length;
+    private final Deque<Future<byte[]>> requests = new ArrayDeque<>();
+    private final Deque<SmbRandomAccess> idle = new ArrayDeque<>();
+    private final List<SmbRandomAccess> handles = new ArrayList<>();
+    private long nextOffset;
+    private byte[] current;
+    private int currentPos;
+    private boolean closed;
+
+    SmbPipelinedInputStream(final SmbResource file, final long position, final ExecutorService executor,
+                            final int blockSize, final int queueDepth) throws CIFSException
+    {
+        this.file = file;
+        this.executor = executor;
+        this.blockSize = Math.max(1, blockSize);
+        this.queueDepth = Math.max(1, queueDepth);
+        this.nextOffset = position;
+
+        final SmbRandomAccess first = file.openRandomAccess("r", SmbConstants.DEFAULT_SHARING);
+        handles.add(first);
+        idle.add(first);
+        try
+        {
+            length = first.length();
+        }
+        catch (final CIFSException e)
+        {
+            first.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Stream closed.");
+        }
+        if (len == 0)
+        {
+            return 0;
+        }
+        while (current == null || currentPos == current.length)
+        {
+            fill();
+            if (requests.isEmpty())
+            {
+                return -1;
+            }
+            current = SmbPipelinedOutputStream.await(requests.pollFirst(), file);
+            currentPos = 0;
+            if (current.length == 0)
+            {
+                // File got shorter since it was opened
+                nextOffset = length;
+            }
+        }
+        final int count = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, count);
+        currentPos += count;
+        fill();
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return current == null ? 0 : current.length - currentPos;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        // Let outstanding reads finish, so that no handle is in use
+        for (final Future<byte[]> f : requests)
+        {
+            try
+            {
+                f.get();
+            }
+            catch (final Exception e)
+            {
+                // Not wanted any more
+            }
+        }
+        requests.clear();
+        final List<SmbRandomAccess> toClose;
+        synchronized (idle)
+        {
+            toClose = new ArrayList<>(handles);
+        }
+        CIFSException error = null;
+        for (final SmbRandomAccess handle : toClose)
+        {
+            try
+            {
+                handle.close();
+            }
+            catch (final CIFSException e)
+            {
+                if (error == null)
+                {
+                    error = e;
+                }
+            }
+        }
+        if (error != null)
+        {
+            throw error;
+        }
+    }
+
+    private void fill()
+    {
+        while (requests.size() < queueDepth && nextOffset < length)
+        {
+            final long offset = nextOffset;
+            final int size = (int) Math.min(blockSize, length - offset);
+            requests.add(executor.submit(new Callable<byte[]>()
+            {
+                @Override
+                public byte[] call() throws Exception
+                {
+                    return readBlock(offset, size);
+                }
+            }));
+            nextOffset += size;
+        }
+    }
+
+    private byte[] readBlock(final long offset, final int size) throws CIFSException
+    {
+        final SmbRandomAccess handle = borrow();
+        try
+        {
+            final byte[] block = new byte[size];
+            int read = 0;
+            handle.seek(offset);
+            while (read < size)
+            {
+                final int r = handle.read(block, read, size - read);
+                if (r == -1)
+                {
+                    return Arrays.copyOf(block, read);
+                }
+                read += r;
+            }
+            return block;
+        }
+        finally
+        {
+            release(handle);
+        }
+    }
+
+    private SmbRandomAccess borrow() throws CIFSException
+    {
+        synchronized (idle)
+        {
+            if (!idle.isEmpty())
+            {
+                return idle.pollFirst();
+            }
+        }
+        final SmbRandomAccess handle = file.openRandomAccess("r", SmbConstants.DEFAULT_SHARING);
+        synchronized (idle)
+        {
+            handles.add(handle);
+        }
+        return handle;
+    }
+
+    private void release(final SmbRandomAccess handle)
+    {
+        synchronized (idle)
+        {
+            idle.addFirst(handle);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs.smbng;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import jcifs.CIFSException;
+import jcifs.SmbConstants;
+import jcifs.SmbRandomAccess;
+import jcifs.SmbResource;
+
+/**
+ * Writes a file a block at a time, with several blocks being written at once.
+ * As with {@link SmbPipelinedInputStream}, each outstanding block is written
+ * on its own thread over its own handle. The file is created, or truncated
+ * unless appending, before any block is written.
+ */
+class SmbPipelinedOutputStream extends OutputStream
+{
+    private final SmbResource file;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int queueDepth;
+    private final Deque<Future<Void>> requests = new ArrayDeque<>();
+    private final Deque<SmbRandomAccess> idle = new ArrayDeque<>();
+    private final List<SmbRandomAccess> handles = new ArrayList<>();
+    private long position;
+    private byte[] buffer;
+    private int count;
+    private boolean closed;
+
+    SmbPipelinedOutputStream(final SmbResource file, final boolean append, final ExecutorService executor,
+                             final int blockSize, final int queueDepth) throws CIFSException
+    {
+        this.file = file;
+        this.executor = executor;
+        this.blockSize = Math.max(1, blockSize);
+        this.queueDepth = Math.max(1, queueDepth);
+        this.buffer = new byte[this.blockSize];
+
+        final SmbRandomAccess first = file.openRandomAccess("rw", SmbConstants.DEFAULT_SHARING);
+        handles.add(first);
+        idle.add(first);
+        try
+        {
+            if (append)
+            {
+                position = first.length();
+            }
+            else
+            {
+                first.setLength(0);
+            }
+        }
+        catch (final CIFSException e)
+        {
+            first.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Stream closed.");
+        }
+        while (len > 0)
+        {
+            final int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == blockSize)
+            {
+                sendBlock();
+            }
+        }
+    }
+
+    /**
+     * Sends anything buffered, and waits for every outstanding block to be
+     * written.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Stream closed.");
+        }
+        sendBlock();
+        while (!requests.isEmpty())
+        {
+            await(requests.pollFirst(), file);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        IOException error = null;
+        try
+        {
+            flush();
+        }
+        catch (final IOException e)
+        {
+            error = e;
+        }
+        closed = true;
+        // On failure, others may still be writing
+        for (final Future<Void> f : requests)
+        {
+            try
+            {
+                f.get();
+            }
+            catch (final Exception e)
+            {
+                // Already failed
+            }
+        }
+        requests.clear();
+        final List<SmbRandomAccess> toClose;
+        synchronized (idle)
+        {
+            toClose = new ArrayList<>(handles);
+        }
+        for (final SmbRandomAccess handle : toClose)
+        {
+            try
+            {
+                handle.close();
+            }
+            catch (final CIFSException e)
+            {
+                if (error == null)
+                {
+                    error = e;
+                }
+            }
+        }
+        if (error != null)
+        {
+            throw error;
+        }
+    }
+
+    private void sendBlock() throws IOException
+    {
+        if (count == 0)
+        {
+            return;
+        }
+        // Make room first, so that queueDepth blocks are in flight while the next is filled
+        while (requests.size() >= queueDepth)
+        {
+            await(requests.pollFirst(), file);
+        }
+        final byte[] block = buffer;
+        final int size = count;
+        final long offset = position;
+        requests.add(executor.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                writeBlock(offset, block, size);
+                return null;
+            }
+        }));
+        position += size;
+        buffer = new byte[blockSize];
+        count = 0;
+    }
+
+    private void writeBlock(final long offset, final byte[] block, final int size) throws CIFSException
+    {
+        final SmbRandomAccess handle;
+        synchronized (idle)
+        {
+            handle = idle.pollFirst();
+        }
+        final SmbRandomAccess h = handle == null ? open() : handle;
+        try
+        {
+            h.seek(offset);
+            h.write(block, 0, size);
+        }
+        catch (final IOException e)
+        {
+            throw e instanceof CIFSException ? (CIFSException) e : new CIFSException(e.getMessage(), e);
+        }
+        finally
+        {
+            synchronized (idle)
+            {
+                idle.addFirst(h);
+            }
+        }
+    }
+
+    private SmbRandomAccess open() throws CIFSException
+    {
+        final SmbRandomAccess handle = file.openRandomAccess("rw", SmbConstants.DEFAULT_SHARING);
+        synchronized (idle)
+        {
+            handles.add(handle);
+        }
+        return handle;
+    }
+
+    /**
+     * Waits for a block of a pipelined transfer, throwing what it failed with.
+     */
+    static <T> T await(final Future<T> request, final SmbResource file) throws IOException
+    {
+        try
+        {
+            return request.get();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted transferring " + file);
+        }
+        catch (final ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to transfer " + file, e.getCause());
+        }
+    }
+}